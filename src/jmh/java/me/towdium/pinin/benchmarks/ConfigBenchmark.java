@@ -0,0 +1,36 @@
+package me.towdium.pinin.benchmarks;
+
+import me.towdium.pinin.PinIn;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link PinIn.Config#commit()}, alternating a fuzzy flag
+ * so that every commit rebuilds phonemes and pinyin splits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigBenchmark {
+    @Param({"QUANPIN", "DAQIAN", "XIAOHE", "ZIRANMA", "SOUGOU",
+            "GUOBIAO", "MICROSOFT", "PINYINPP", "ZIGUANG"})
+    String keyboard;
+
+    PinIn context;
+    boolean fuzzy;
+
+    @Setup
+    public void setup() {
+        context = new PinIn().config().keyboard(Fixtures.keyboard(keyboard)).commit();
+    }
+
+    @Benchmark
+    public PinIn commit() {
+        fuzzy = !fuzzy;
+        return context.config().fZh2Z(fuzzy).fSh2S(fuzzy).fCh2C(fuzzy).commit();
+    }
+}
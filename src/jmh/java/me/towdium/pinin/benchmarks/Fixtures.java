@@ -0,0 +1,67 @@
+package me.towdium.pinin.benchmarks;
+
+import me.towdium.pinin.Keyboard;
+import me.towdium.pinin.PinIn;
+import me.towdium.pinin.elements.Phoneme;
+import me.towdium.pinin.elements.Pinyin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared inputs of the benchmarks: corpora from test resources,
+ * keyboards by name and search tokens typed on each keyboard.
+ */
+class Fixtures {
+    // 玻璃, 羊毛 and 红色, the tokens used by the old timing test
+    static final String[] WORDS = {"玻璃", "羊毛", "红色"};
+
+    static List<String> corpus(String name) throws IOException {
+        List<String> ret = new ArrayList<>();
+        InputStream is = Fixtures.class.getResourceAsStream("/me/towdium/pinin/" + name + ".txt");
+        if (is == null) throw new IllegalArgumentException("Corpus not found: " + name);
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (!line.isEmpty()) ret.add(line);
+            }
+        }
+        return ret;
+    }
+
+    static Keyboard keyboard(String name) {
+        try {
+            return (Keyboard) Keyboard.class.getField(name).get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unknown keyboard: " + name, e);
+        }
+    }
+
+    /**
+     * Spells {@link #WORDS} with the keys of the keyboard configured in
+     * given context, using the first reading of each character, without tone.
+     */
+    static List<String> tokens(PinIn p) {
+        List<String> ret = new ArrayList<>();
+        for (String w : WORDS) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < w.length(); i++) {
+                Pinyin[] pinyins = p.getChar(w.charAt(i)).pinyins();
+                if (pinyins.length == 0) {
+                    sb.append(w.charAt(i));
+                    continue;
+                }
+                Phoneme[] phonemes = p.state().phonemes(pinyins[0]);
+                for (int j = 0; j < phonemes.length - 1; j++)
+                    sb.append(phonemes[j]);
+            }
+            ret.add(sb.toString());
+        }
+        return ret;
+    }
+}
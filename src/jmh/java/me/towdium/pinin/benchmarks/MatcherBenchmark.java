@@ -0,0 +1,57 @@
+package me.towdium.pinin.benchmarks;
+
+import me.towdium.pinin.PinIn;
+import me.towdium.pinin.searchers.Searcher.Logic;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immediate matching through {@link PinIn#contains}, {@link PinIn#begins}
+ * and {@link PinIn#matches}, looping over the whole corpus per token.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatcherBenchmark {
+    @Param({"small"})
+    String corpus;
+
+    @Param({"QUANPIN", "DAQIAN", "XIAOHE", "ZIRANMA", "SOUGOU",
+            "GUOBIAO", "MICROSOFT", "PINYINPP", "ZIGUANG"})
+    String keyboard;
+
+    @Param({"BEGIN", "CONTAIN", "EQUAL"})
+    Logic logic;
+
+    @Param({"false", "true"})
+    boolean accelerate;
+
+    List<String> data;
+    List<String> tokens;
+    PinIn context;
+
+    @Setup
+    public void setup() throws IOException {
+        data = Fixtures.corpus(corpus);
+        context = new PinIn().config().keyboard(Fixtures.keyboard(keyboard))
+                .accelerate(accelerate).commit();
+        tokens = Fixtures.tokens(context);
+    }
+
+    @Benchmark
+    public int match() {
+        int ret = 0;
+        for (String s : tokens) {
+            for (String i : data) {
+                if (logic.test(context, i, s)) ret++;
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,98 @@
+package me.towdium.pinin.benchmarks;
+
+import me.towdium.pinin.PinIn;
+import me.towdium.pinin.searchers.CachedSearcher;
+import me.towdium.pinin.searchers.Searcher;
+import me.towdium.pinin.searchers.Searcher.Logic;
+import me.towdium.pinin.searchers.SimpleSearcher;
+import me.towdium.pinin.searchers.TreeSearcher;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction and search cost of each {@link Searcher} implementation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearcherBenchmark {
+    @Param({"small"})
+    String corpus;
+
+    @Param({"QUANPIN", "DAQIAN", "XIAOHE", "ZIRANMA", "SOUGOU",
+            "GUOBIAO", "MICROSOFT", "PINYINPP", "ZIGUANG"})
+    String keyboard;
+
+    @Param({"BEGIN", "CONTAIN", "EQUAL"})
+    Logic logic;
+
+    @Param({"tree", "bulk", "cached", "simple"})
+    String searcher;
+
+    List<String> data;
+    List<Integer> ids = new ArrayList<>();
+    List<String> tokens;
+    Searcher<Integer> built;
+
+    @Setup
+    public void setup() throws IOException {
+        data = Fixtures.corpus(corpus);
+        for (int i = 0; i < data.size(); i++) ids.add(i);
+        built = build();
+        tokens = Fixtures.tokens(built.context());
+    }
+
+    Searcher<Integer> build() {
+        PinIn p = new PinIn().config().keyboard(Fixtures.keyboard(keyboard)).commit();
+        Searcher<Integer> ret;
+        switch (searcher) {
+            case "tree":
+                ret = new TreeSearcher<>(logic, p);
+                break;
+            case "bulk":
+                TreeSearcher<Integer> tree = new TreeSearcher<>(logic, p);
+                tree.putAll(data, ids);
+                return tree;
+            case "cached":
+                ret = new CachedSearcher<>(logic, p);
+                break;
+            case "simple":
+                ret = new SimpleSearcher<>(logic, p);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown searcher: " + searcher);
+        }
+        for (int i = 0; i < data.size(); i++) ret.put(data.get(i), i);
+        return ret;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Searcher<Integer> construct() {
+        return build();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void search(Blackhole bh) {
+        for (String s : tokens) bh.consume(built.search(s));
+    }
+
+    // types each token one character at a time, as a search box does
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void typeahead(Blackhole bh) {
+        Searcher.Session<Integer> session = built.session();
+        for (String s : tokens) {
+            for (int i = 1; i <= s.length(); i++)
+                bh.consume(session.search(s.substring(0, i)));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package me.towdium.pinin;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.Normalizer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Compiles text dictionary into binary one read by {@link DictLoader.Default},
+ * it runs at build time, with input and output path as arguments.
+ * <p>
+ * Binary layout, numbers are big endian:
+ * magic, version, size of following data, amount of pinyins,
+ * (length, ascii chars) of each pinyin, amount of chars, chars,
+ * amount of pinyins of each char, indices of pinyins of all chars.
+ * Chars are sorted and distinct.
+ */
+public class DictCompiler {
+    static final int MAGIC = 0x50696E44;  // PinD
+    static final int VERSION = 1;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) throw new IllegalArgumentException("Usage: DictCompiler <input> <output>");
+        try (BufferedReader br = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8);
+             OutputStream os = Files.newOutputStream(Paths.get(args[1]))) {
+            compile(br, os);
+        }
+    }
+
+    public static void compile(BufferedReader in, OutputStream out) throws IOException {
+        // runs at build time only, so fastutil is not used, as parts of it are not shipped
+        Map<String, Integer> pinyins = new LinkedHashMap<>();
+        ByteArrayOutputStream chars = new ByteArrayOutputStream();
+        ByteArrayOutputStream counts = new ByteArrayOutputStream();
+        ByteArrayOutputStream indices = new ByteArrayOutputStream();
+        DataOutputStream cs = new DataOutputStream(chars);
+        DataOutputStream is = new DataOutputStream(indices);
+        // later records override earlier ones, chars are written in order
+        String[][] data = new String[Character.MAX_VALUE + 1][];
+        parse(in, (c, ss) -> data[c] = ss);
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            if (data[c] == null) continue;
+            cs.writeChar(c);
+            counts.write(data[c].length);
+            for (String s : data[c]) {
+                int i = pinyins.computeIfAbsent(s, k -> pinyins.size());
+                if (i > Short.MAX_VALUE) throw new IllegalStateException("Too many pinyins");
+                is.writeShort(i);
+            }
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(body);
+        dos.writeInt(pinyins.size());
+        for (String s : pinyins.keySet()) {
+            dos.writeByte(s.length());
+            dos.writeBytes(s);
+        }
+        dos.writeInt(chars.size() / 2);
+        chars.writeTo(dos);
+        counts.writeTo(dos);
+        indices.writeTo(dos);
+        dos.flush();
+
+        DataOutputStream ret = new DataOutputStream(out);
+        ret.writeInt(MAGIC);
+        ret.writeInt(VERSION);
+        ret.writeInt(body.size());
+        body.writeTo(ret);
+        ret.flush();
+    }
+
+    /**
+     * Parses text dictionary, in either format of
+     * <a href="https://github.com/mozillazg/pinyin-data">pinyin-data</a>,
+     * like {@code U+6D4B: cè  # 测}, or {@code 测: ce4}.
+     * Chars outside basic multilingual plane are skipped.
+     */
+    public static void parse(BufferedReader in, BiConsumer<Character, String[]> feed) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            if (line.startsWith("U+")) {
+                int colon = line.indexOf(':');
+                int code = Integer.parseInt(line.substring(2, colon), 16);
+                if (code > Character.MAX_VALUE) continue;
+                int comment = line.indexOf('#');
+                String[] records = line.substring(colon + 1, comment < 0 ? line.length() : comment).trim().split(",");
+                for (int i = 0; i < records.length; i++) records[i] = number(records[i].trim());
+                feed.accept((char) code, records);
+            } else feed.accept(line.charAt(0), line.substring(3).split(", "));
+        }
+    }
+
+    // converts tone marks to tone number and ü to v, neutral tone is 0
+    static String number(String marked) {
+        StringBuilder sb = new StringBuilder();
+        char tone = '0';
+        for (char c : Normalizer.normalize(marked, Normalizer.Form.NFD).toCharArray()) {
+            switch (c) {
+                case '̄':
+                    tone = '1';
+                    break;
+                case '́':
+                    tone = '2';
+                    break;
+                case '̌':
+                    tone = '3';
+                    break;
+                case '̀':
+                    tone = '4';
+                    break;
+                case '̈':
+                    sb.setCharAt(sb.length() - 1, 'v');
+                    break;
+                case '̂':  // ê
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.append(tone).toString();
+    }
+}
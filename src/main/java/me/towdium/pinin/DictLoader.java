@@ -1,32 +1,87 @@
-package me.towdium.pinin;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
-import java.util.function.BiConsumer;
-
-@FunctionalInterface
-public interface DictLoader {
-    void load(BiConsumer<Character, String[]> feed);
-
-    class Default implements DictLoader {
-        @Override
-        public void load(BiConsumer<Character, String[]> feed) {
-            InputStream is = PinIn.class.getResourceAsStream("data.txt");
-            InputStreamReader isr = new InputStreamReader(is, StandardCharsets.UTF_8);
-            BufferedReader br = new BufferedReader(isr);
-            try {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    char ch = line.charAt(0);
-                    String[] records = line.substring(3).split(", ");
-                    feed.accept(ch, records);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-}
+package me.towdium.pinin;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
+@FunctionalInterface
+public interface DictLoader {
+    void load(BiConsumer<Character, String[]> feed);
+
+    /**
+     * Loads binary dictionary compiled by {@link DictCompiler} at build
+     * time, and falls back to text one when it is absent.
+     */
+    class Default implements DictLoader {
+        @Override
+        public void load(BiConsumer<Character, String[]> feed) {
+            Dict d = read();
+            if (d == null) text(feed);
+            else {
+                for (int i = 0, k = 0; i < d.chars.length; i++) {
+                    String[] ss = new String[d.counts[i]];
+                    for (int j = 0; j < ss.length; j++) ss[j] = d.pinyins[d.indices[k++]];
+                    feed.accept(d.chars[i], ss);
+                }
+            }
+        }
+
+        // loads compiled dictionary directly, creating no string for each char
+        static Dictionary compiled() {
+            Dict d = read();
+            if (d == null) return new Dictionary(new Default());
+            else return new Dictionary(d.pinyins, d.chars, d.counts, d.indices);
+        }
+
+        private static Dict read() {
+            InputStream is = PinIn.class.getResourceAsStream("data.bin");
+            if (is == null) return null;
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(is))) {
+                if (dis.readInt() != DictCompiler.MAGIC || dis.readInt() != DictCompiler.VERSION)
+                    throw new IOException("Unsupported binary dictionary");
+                byte[] data = new byte[dis.readInt()];
+                dis.readFully(data);
+                return new Dict(ByteBuffer.wrap(data));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        private static void text(BiConsumer<Character, String[]> feed) {
+            InputStream is = PinIn.class.getResourceAsStream("data.txt");
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+                DictCompiler.parse(br, feed);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private static class Dict {
+            final String[] pinyins;
+            final char[] chars;
+            final byte[] counts;
+            final short[] indices;
+
+            Dict(ByteBuffer buf) {
+                pinyins = new String[buf.getInt()];
+                byte[] bs = new byte[Byte.MAX_VALUE];
+                for (int i = 0; i < pinyins.length; i++) {
+                    int length = buf.get();
+                    buf.get(bs, 0, length);
+                    pinyins[i] = new String(bs, 0, length, StandardCharsets.US_ASCII);
+                }
+                chars = new char[buf.getInt()];
+                buf.asCharBuffer().get(chars);
+                buf.position(buf.position() + chars.length * 2);
+                counts = new byte[chars.length];
+                buf.get(counts);
+                int total = 0;
+                for (byte b : counts) total += b;
+                indices = new short[total];
+                buf.asShortBuffer().get(indices);
+            }
+        }
+    }
+}
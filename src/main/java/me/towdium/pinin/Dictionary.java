@@ -0,0 +1,89 @@
+package me.towdium.pinin;
+
+import me.towdium.pinin.elements.Pinyin;
+import me.towdium.pinin.utils.Cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Immutable dictionary, which is shared by contexts of different
+ * configurations. Readings of each char are kept as ids of distinct
+ * pinyins in primitive arrays, so it holds no per char objects.
+ * <p>
+ * {@link Pinyin} objects are shared by all contexts as well, so a
+ * context only holds phonemes of its configuration. Pinyins outside
+ * the readings, asked for by {@link PinIn#getPinyin(String)}, are
+ * added on demand, after them.
+ */
+public class Dictionary {
+    final String[] pinyins;
+    // ids of readings of char c range from starts[c] to starts[c + 1]
+    final int[] starts;
+    final int[] ids;
+    private final AtomicInteger total = new AtomicInteger();
+    private final Cache<String, Pinyin> cache = new Cache<>(s -> new Pinyin(s, total.getAndIncrement()));
+    final Pinyin[] table;  // pinyins of readings by id
+
+    public Dictionary(DictLoader loader) {
+        String[][] data = new String[Character.MAX_VALUE + 1][];
+        loader.load((c, ss) -> data[c] = ss);
+        int total = 0;
+        for (String[] ss : data) if (ss != null) total += ss.length;
+        Map<String, Integer> index = new HashMap<>();
+        starts = new int[Character.MAX_VALUE + 2];
+        ids = new int[total];
+        for (int c = 0, k = 0; c <= Character.MAX_VALUE; c++) {
+            starts[c] = k;
+            if (data[c] != null) for (String s : data[c]) ids[k++] = index.computeIfAbsent(s, i -> index.size());
+        }
+        starts[Character.MAX_VALUE + 1] = total;
+        pinyins = new String[index.size()];
+        index.forEach((s, i) -> pinyins[i] = s);
+        table = table();
+    }
+
+    // chars should be sorted and distinct
+    Dictionary(String[] pinyins, char[] chars, byte[] counts, short[] indices) {
+        this.pinyins = pinyins;
+        starts = new int[Character.MAX_VALUE + 2];
+        ids = new int[indices.length];
+        for (int i = 0; i < ids.length; i++) ids[i] = indices[i];
+        for (int i = 0; i < chars.length; i++) starts[chars[i] + 1] = counts[i];
+        for (int c = 0; c <= Character.MAX_VALUE; c++) starts[c + 1] += starts[c];
+        table = table();
+    }
+
+    // readings are distinct, so they take the first ids in order
+    private Pinyin[] table() {
+        Pinyin[] ret = new Pinyin[pinyins.length];
+        for (int i = 0; i < ret.length; i++) ret[i] = cache.get(pinyins[i]);
+        return ret;
+    }
+
+    Pinyin pinyin(String s) {
+        return cache.get(s);
+    }
+
+    // count of pinyins created so far, which is an upper bound of their ids
+    int size() {
+        return total.get();
+    }
+
+    void pinyins(Consumer<Pinyin> c) {
+        cache.foreach((s, p) -> c.accept(p));
+    }
+
+    /**
+     * @return dictionary shipped with the library, loaded once
+     */
+    public static Dictionary standard() {
+        return Standard.INSTANCE;
+    }
+
+    private static class Standard {
+        static final Dictionary INSTANCE = DictLoader.Default.compiled();
+    }
+}
@@ -1,61 +1,77 @@
 package me.towdium.pinin;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import me.towdium.pinin.elements.Automaton;
 import me.towdium.pinin.elements.Char;
 import me.towdium.pinin.elements.Element;
 import me.towdium.pinin.elements.Phoneme;
 import me.towdium.pinin.elements.Pinyin;
+import me.towdium.pinin.searchers.Searcher.Logic;
 import me.towdium.pinin.utils.Accelerator;
 import me.towdium.pinin.utils.Cache;
 import me.towdium.pinin.utils.IndexSet;
 import me.towdium.pinin.utils.PinyinFormat;
 
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 @SuppressWarnings("unused")
 public class PinIn {
-    private int total = 0;
-
-    private final Cache<String, Phoneme> phonemes = new Cache<>(s -> new Phoneme(s, this));
-    private final Cache<String, Pinyin> pinyins = new Cache<>(s -> new Pinyin(s, this, total++));
-    private final Char[] chars = new Char[Character.MAX_VALUE];
-    private final Char.Dummy temp = new Char.Dummy();
+    private final Dictionary dict;
+    // chars created on demand, in pages of 256 allocated when first used,
+    // so a context only pays for the ranges it looks up
+    private final Char[][] chars = new Char[256][];
     private final ThreadLocal<Accelerator> acc;
-
-    private Keyboard keyboard = Keyboard.QUANPIN;
-    private int modification = 0;
-    private boolean fZh2Z = false;
-    private boolean fSh2S = false;
-    private boolean fCh2C = false;
-    private boolean fAng2An = false;
-    private boolean fIng2In = false;
-    private boolean fEng2En = false;
-    private boolean fU2V = false;
-    private boolean accelerate = false;
-    private PinyinFormat format = PinyinFormat.NUMBER;
+    private volatile State state;
 
     /**
      * Use PinIn object to manage the context
      * To configure it, use {@link #config()}
+     * <p>
+     * Matching functions are thread safe. Configuration is kept in an
+     * immutable {@link State}, which is replaced as a whole on commit.
      */
     public PinIn() {
-        this(new DictLoader.Default());
+        this(Dictionary.standard());
     }
 
     public PinIn(DictLoader loader) {
+        // subclasses might override feeding, so only exact default loader is shared
+        this(loader.getClass() == DictLoader.Default.class ? Dictionary.standard() : new Dictionary(loader));
+    }
+
+    /**
+     * Contexts created from the same dictionary share it with its
+     * pinyins, so each of them only holds phonemes of its configuration
+     * and chars it looked up.
+     */
+    public PinIn(Dictionary dict) {
+        this.dict = dict;
         acc = ThreadLocal.withInitial(() -> new Accelerator(this));
-        loader.load((c, ss) -> {
-            if (ss == null) {
-                chars[c] = null;
-            } else {
-                Pinyin[] pinyins = new Pinyin[ss.length];
-                for (int i = 0; i < ss.length; i++) {
-                    pinyins[i] = getPinyin(ss[i]);
-                }
-                chars[c] = new Char(c, pinyins);
-            }
-        });
+        state = new State();
     }
 
+    // String overloads keep callers built against older versions linking
     public boolean contains(String s1, String s2) {
-        if (accelerate) {
+        return contains((CharSequence) s1, s2);
+    }
+
+    public boolean begins(String s1, String s2) {
+        return begins((CharSequence) s1, s2);
+    }
+
+    public boolean matches(String s1, String s2) {
+        return matches((CharSequence) s1, s2);
+    }
+
+    public boolean contains(CharSequence s1, String s2) {
+        if (state.accelerate) {
             Accelerator a = acc.get();
             a.setProvider(s1);
             a.search(s2);
@@ -63,8 +79,8 @@ public class PinIn {
         } else return Matcher.contains(s1, s2, this);
     }
 
-    public boolean begins(String s1, String s2) {
-        if (accelerate) {
+    public boolean begins(CharSequence s1, String s2) {
+        if (state.accelerate) {
             Accelerator a = acc.get();
             a.setProvider(s1);
             a.search(s2);
@@ -72,8 +88,8 @@ public class PinIn {
         } else return Matcher.begins(s1, s2, this);
     }
 
-    public boolean matches(String s1, String s2) {
-        if (accelerate) {
+    public boolean matches(CharSequence s1, String s2) {
+        if (state.accelerate) {
             Accelerator a = acc.get();
             a.setProvider(s1);
             a.search(s2);
@@ -81,62 +97,153 @@ public class PinIn {
         } else return Matcher.matches(s1, s2, this);
     }
 
+    public boolean contains(char[] s1, int offset, int length, String s2) {
+        if (state.accelerate) {
+            Accelerator a = acc.get();
+            a.setProvider(s1, offset, length);
+            a.search(s2);
+            return a.contains(0, 0);
+        } else return Matcher.contains(CharBuffer.wrap(s1, offset, length), s2, this);
+    }
+
+    public boolean begins(char[] s1, int offset, int length, String s2) {
+        if (state.accelerate) {
+            Accelerator a = acc.get();
+            a.setProvider(s1, offset, length);
+            a.search(s2);
+            return a.begins(0, 0);
+        } else return Matcher.begins(CharBuffer.wrap(s1, offset, length), s2, this);
+    }
+
+    public boolean matches(char[] s1, int offset, int length, String s2) {
+        if (state.accelerate) {
+            Accelerator a = acc.get();
+            a.setProvider(s1, offset, length);
+            a.search(s2);
+            return a.matches(0, 0);
+        } else return Matcher.matches(CharBuffer.wrap(s1, offset, length), s2, this);
+    }
+
+    public boolean contains(CharBuffer s1, String s2) {
+        return s1.hasArray() ? contains(s1.array(), s1.arrayOffset() + s1.position(), s1.remaining(), s2)
+                : contains((CharSequence) s1, s2);
+    }
+
+    public boolean begins(CharBuffer s1, String s2) {
+        return s1.hasArray() ? begins(s1.array(), s1.arrayOffset() + s1.position(), s1.remaining(), s2)
+                : begins((CharSequence) s1, s2);
+    }
+
+    public boolean matches(CharBuffer s1, String s2) {
+        return s1.hasArray() ? matches(s1.array(), s1.arrayOffset() + s1.position(), s1.remaining(), s2)
+                : matches((CharSequence) s1, s2);
+    }
+
+    /**
+     * Matches one query against many strings, the query is prepared only once.
+     * Strings are matched with the accelerator regardless of configuration.
+     *
+     * @return indices of matching strings, in order
+     */
+    public IntList filter(Iterable<? extends CharSequence> strs, String query, Logic logic) {
+        Accelerator a = acc.get();
+        a.search(query);
+        IntList ret = new IntArrayList();
+        int i = 0;
+        for (CharSequence s : strs) {
+            if (test(a, s, query, logic)) ret.add(i);
+            i++;
+        }
+        return ret;
+    }
+
+    /**
+     * Same as {@link #filter(Iterable, String, Logic)}, large lists
+     * are split into chunks matched in parallel on given pool.
+     */
+    public IntList filter(List<? extends CharSequence> strs, String query, Logic logic, ForkJoinPool pool) {
+        return pool.invoke(new Filter(strs, query, logic, 0, strs.size()));
+    }
+
+    private static boolean test(Accelerator a, CharSequence s, String query, Logic logic) {
+        // empty strings are compared as is, like one-off matching does
+        if (s.length() == 0) return logic.raw("", query);
+        a.setProvider(s);
+        return logic.test(a, 0, 0);
+    }
+
     public Phoneme getPhoneme(String s) {
-        return phonemes.get(s);
+        return state.phoneme(s);
     }
 
     public Pinyin getPinyin(String s) {
-        return pinyins.get(s);
+        return dict.pinyin(s);
     }
 
     public Char getChar(char c) {
-        Char ret = chars[c];
-        if (ret != null) {
-            return ret;
-        } else {
-            temp.set(c);
-            return temp;
+        // chars are immutable, racing writes store equivalent objects, so it needs no lock
+        Char[] page = chars[c >> 8];
+        if (page == null) chars[c >> 8] = page = new Char[256];
+        Char ret = page[c & 0xFF];
+        if (ret == null) {
+            int start = dict.starts[c];
+            int size = dict.starts[c + 1] - start;
+            Pinyin[] pinyins = size == 0 ? Char.NONE : new Pinyin[size];
+            for (int i = 0; i < size; i++) pinyins[i] = dict.table[dict.ids[start + i]];
+            page[c & 0xFF] = ret = new Char(c, pinyins, this);
         }
+        return ret;
+    }
+
+    public Dictionary dictionary() {
+        return dict;
+    }
+
+    /**
+     * @return snapshot of current configuration, which never changes
+     */
+    public State state() {
+        return state;
     }
 
     public Keyboard keyboard() {
-        return keyboard;
+        return state.keyboard;
     }
 
     public boolean fZh2Z() {
-        return fZh2Z;
+        return state.fZh2Z;
     }
 
     public boolean fSh2S() {
-        return fSh2S;
+        return state.fSh2S;
     }
 
     public boolean fCh2C() {
-        return fCh2C;
+        return state.fCh2C;
     }
 
     public boolean fAng2An() {
-        return fAng2An;
+        return state.fAng2An;
     }
 
     public boolean fIng2In() {
-        return fIng2In;
+        return state.fIng2In;
     }
 
     public boolean fEng2En() {
-        return fEng2En;
+        return state.fEng2En;
     }
 
     public boolean fU2V() {
-        return fU2V;
+        return state.fU2V;
     }
 
     public PinyinFormat format() {
-        return format;
+        return state.format;
     }
 
     public String format(Pinyin p) {
-        return format.format(p);
+        return state.format.format(p);
     }
 
     /**
@@ -151,57 +258,125 @@ public class PinIn {
         return new Ticket(r);
     }
 
-    private void config(Config c) {
-        format = c.format;
-
-        if (fAng2An == c.fAng2An && fEng2En == c.fEng2En && fIng2In == c.fIng2In
-                && fZh2Z == c.fZh2Z && fSh2S == c.fSh2S && fCh2C == c.fCh2C
-                && keyboard == c.keyboard && fU2V == c.fU2V && accelerate == c.accelerate) return;
-
-        keyboard = c.keyboard;
-        fZh2Z = c.fZh2Z;
-        fSh2S = c.fSh2S;
-        fCh2C = c.fCh2C;
-        fAng2An = c.fAng2An;
-        fIng2In = c.fIng2In;
-        fEng2En = c.fEng2En;
-        fU2V = c.fU2V;
-        accelerate = c.accelerate;
-        phonemes.foreach((s, p) -> p.reload(s, this));
-        pinyins.foreach((s, p) -> p.reload(s, this));
-        modification++;
+    private synchronized void config(Config c) {
+        state = new State(c, state);
     }
 
     public static class Matcher {
+        // scratch of failed states, reused by calls of each thread
+        static final ThreadLocal<Memo> MEMO = ThreadLocal.withInitial(Memo::new);
+
         public static boolean begins(String s1, String s2, PinIn p) {
-            if (s1.isEmpty()) return s1.startsWith(s2);
-            else return check(s1, 0, s2, 0, p, true);
+            return begins((CharSequence) s1, s2, p);
         }
 
         public static boolean contains(String s1, String s2, PinIn p) {
-            if (s1.isEmpty()) return s1.contains(s2);
+            return contains((CharSequence) s1, s2, p);
+        }
+
+        public static boolean matches(String s1, String s2, PinIn p) {
+            return matches((CharSequence) s1, s2, p);
+        }
+
+        public static boolean begins(CharSequence s1, String s2, PinIn p) {
+            if (s1.length() == 0) return s2.isEmpty();
+            else return check(s1, 0, s2, 0, p, true, MEMO.get().reset(s1, s2));
+        }
+
+        public static boolean contains(CharSequence s1, String s2, PinIn p) {
+            if (s1.length() == 0) return s2.isEmpty();
             else {
+                // states are shared by all starting points
+                Memo m = MEMO.get().reset(s1, s2);
                 for (int i = 0; i < s1.length(); i++)
-                    if (check(s1, i, s2, 0, p, true)) return true;
+                    if (check(s1, i, s2, 0, p, true, m)) return true;
                 return false;
             }
         }
 
-        public static boolean matches(String s1, String s2, PinIn p) {
-            if (s1.isEmpty()) return s1.equals(s2);
-            else return check(s1, 0, s2, 0, p, false);
+        public static boolean matches(CharSequence s1, String s2, PinIn p) {
+            if (s1.length() == 0) return s2.isEmpty();
+            else return check(s1, 0, s2, 0, p, false, MEMO.get().reset(s1, s2));
         }
 
-        private static boolean check(String s1, int start1, String s2, int start2, PinIn p, boolean partial) {
+        // each state of (start1, start2) is evaluated at most once, so cost
+        // is bounded by length of s1 times length of s2
+        private static boolean check(CharSequence s1, int start1, String s2, int start2, PinIn p, boolean partial, Memo m) {
             if (start2 == s2.length()) return partial || start1 == s1.length();
+            int state = start1 * m.width + start2;
+            if (m.failed[state] == m.generation) return false;
 
             Element r = p.getChar(s1.charAt(start1));
-            IndexSet s = r.match(s2, start2, partial);
+            int s = r.match(s2, start2, partial);
 
+            boolean ret = false;
             if (start1 == s1.length() - 1) {
                 int i = s2.length() - start2;
-                return s.get(i);
-            } else return s.traverse(i -> check(s1, start1 + 1, s2, start2 + i, p, partial));
+                ret = IndexSet.get(s, i);
+            } else {
+                for (int v = s; v != 0 && !ret; v &= v - 1)
+                    ret = check(s1, start1 + 1, s2, start2 + Integer.numberOfTrailingZeros(v), p, partial, m);
+            }
+            if (!ret) m.failed[state] = m.generation;
+            return ret;
+        }
+
+        static class Memo {
+            int[] failed = new int[0];  // generation in which each state failed
+            int generation;
+            int width;
+
+            Memo reset(CharSequence s1, String s2) {
+                width = s2.length();
+                int size = s1.length() * width;
+                if (failed.length < size) {
+                    failed = new int[Math.max(size, failed.length * 2)];
+                    generation = 0;
+                }
+                if (++generation == 0) {
+                    Arrays.fill(failed, 0);
+                    generation = 1;
+                }
+                return this;
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class Filter extends RecursiveTask<IntList> {
+        static final int PARALLEL = 4096;  // maximum strings matched in one task
+
+        final List<? extends CharSequence> strs;
+        final String query;
+        final Logic logic;
+        final int from;
+        final int to;
+
+        Filter(List<? extends CharSequence> strs, String query, Logic logic, int from, int to) {
+            this.strs = strs;
+            this.query = query;
+            this.logic = logic;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected IntList compute() {
+            if (to - from > PARALLEL) {
+                int mid = (from + to) >>> 1;
+                Filter left = new Filter(strs, query, logic, from, mid);
+                left.fork();
+                IntList right = new Filter(strs, query, logic, mid, to).compute();
+                IntList ret = left.join();
+                ret.addAll(right);
+                return ret;
+            }
+            Accelerator a = acc.get();
+            a.search(query);
+            IntList ret = new IntArrayList();
+            for (int i = from; i < to; i++)
+                if (test(a, strs.get(i), query, logic)) ret.add(i);
+            return ret;
         }
     }
 
@@ -211,11 +386,11 @@ public class PinIn {
 
         private Ticket(Runnable r) {
             runnable = r;
-            modification = PinIn.this.modification;
+            modification = state.modification;
         }
 
         public void renew() {
-            int i = PinIn.this.modification;
+            int i = state.modification;
             if (modification != i) {
                 modification = i;
                 runnable.run();
@@ -236,15 +411,16 @@ public class PinIn {
         public PinyinFormat format;
 
         private Config() {
-            keyboard = PinIn.this.keyboard;
-            fZh2Z = PinIn.this.fZh2Z;
-            fSh2S = PinIn.this.fSh2S;
-            fCh2C = PinIn.this.fCh2C;
-            fAng2An = PinIn.this.fAng2An;
-            fIng2In = PinIn.this.fIng2In;
-            fEng2En = PinIn.this.fEng2En;
-            fU2V = PinIn.this.fU2V;
-            accelerate = PinIn.this.accelerate;
+            State s = state;
+            keyboard = s.keyboard;
+            fZh2Z = s.fZh2Z;
+            fSh2S = s.fSh2S;
+            fCh2C = s.fCh2C;
+            fAng2An = s.fAng2An;
+            fIng2In = s.fIng2In;
+            fEng2En = s.fEng2En;
+            fU2V = s.fU2V;
+            accelerate = s.accelerate;
             format = PinyinFormat.NUMBER;
         }
 
@@ -317,4 +493,110 @@ public class PinIn {
             return PinIn.this;
         }
     }
+
+    /**
+     * Immutable snapshot of configuration, together with phonemes
+     * and splits of pinyins generated under it.
+     */
+    public class State {
+        public final Keyboard keyboard;
+        public final boolean fZh2Z;
+        public final boolean fSh2S;
+        public final boolean fCh2C;
+        public final boolean fAng2An;
+        public final boolean fIng2In;
+        public final boolean fEng2En;
+        public final boolean fU2V;
+        public final boolean accelerate;
+        public final PinyinFormat format;
+        final int modification;
+        final Cache<String, Phoneme> phonemes;
+        final Phoneme[][] splits;
+        final AtomicReference<Automaton> automaton;
+
+        private State() {
+            keyboard = Keyboard.QUANPIN;
+            fZh2Z = false;
+            fSh2S = false;
+            fCh2C = false;
+            fAng2An = false;
+            fIng2In = false;
+            fEng2En = false;
+            fU2V = false;
+            accelerate = false;
+            format = PinyinFormat.NUMBER;
+            modification = 0;
+            phonemes = phonemes();
+            splits = split();
+            automaton = new AtomicReference<>();
+        }
+
+        private State(Config c, State s) {
+            keyboard = c.keyboard;
+            fZh2Z = c.fZh2Z;
+            fSh2S = c.fSh2S;
+            fCh2C = c.fCh2C;
+            fAng2An = c.fAng2An;
+            fIng2In = c.fIng2In;
+            fEng2En = c.fEng2En;
+            fU2V = c.fU2V;
+            accelerate = c.accelerate;
+            format = c.format;
+
+            if (s.fAng2An == fAng2An && s.fEng2En == fEng2En && s.fIng2In == fIng2In
+                    && s.fZh2Z == fZh2Z && s.fSh2S == fSh2S && s.fCh2C == fCh2C
+                    && s.keyboard == keyboard && s.fU2V == fU2V && s.accelerate == accelerate) {
+                modification = s.modification;
+                phonemes = s.phonemes;
+                splits = s.splits;
+                automaton = s.automaton;
+            } else {
+                modification = s.modification + 1;
+                phonemes = phonemes();
+                splits = split();
+                automaton = new AtomicReference<>();
+            }
+        }
+
+        public Phoneme phoneme(String s) {
+            return phonemes.get(s);
+        }
+
+        /**
+         * Automaton of pinyins created before this state, built on first use
+         */
+        public Automaton automaton() {
+            Automaton ret = automaton.get();
+            if (ret == null) {
+                automaton.compareAndSet(null, new Automaton(splits, keyboard));
+                ret = automaton.get();
+            }
+            return ret;
+        }
+
+        public Phoneme[] phonemes(Pinyin p) {
+            Phoneme[] ret = p.id < splits.length ? splits[p.id] : null;
+            // pinyins created after this state are split on demand
+            return ret == null ? split(p) : ret;
+        }
+
+        // phonemes are numbered within the cache, which is shared by equivalent states
+        private Cache<String, Phoneme> phonemes() {
+            AtomicInteger count = new AtomicInteger();
+            return new Cache<>(s -> new Phoneme(s, this, count.getAndIncrement()));
+        }
+
+        private Phoneme[][] split() {
+            Phoneme[][] ret = new Phoneme[dict.size()][];
+            dict.pinyins(p -> {
+                if (p.id < ret.length) ret[p.id] = split(p);
+            });
+            return ret;
+        }
+
+        private Phoneme[] split(Pinyin p) {
+            return keyboard.split(p.toString()).stream()
+                    .map(this::phoneme).toArray(Phoneme[]::new);
+        }
+    }
 }
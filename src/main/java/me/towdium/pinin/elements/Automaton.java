@@ -0,0 +1,302 @@
+package me.towdium.pinin.elements;
+
+import it.unimi.dsi.fastutil.chars.Char2ObjectMap;
+import it.unimi.dsi.fastutil.chars.Char2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import me.towdium.pinin.Keyboard;
+import me.towdium.pinin.utils.IndexSet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Trie of all spellings of all pinyins under a configuration,
+ * so match lengths of every pinyin at a position of the query
+ * are collected with a single walk.
+ * <p>
+ * Spellings are the concatenations of alternatives of phonemes
+ * of a pinyin. Each node records pinyins whose match ends there,
+ * and pinyins passing through it, which match partially when the
+ * query ends there. Nodes are stored flat, children sorted by key.
+ * <p>
+ * For shuangpin keyboards, pinyins whose initial, final and tone are
+ * single keys are matched with direct tables of key pairs instead,
+ * and only the rest of them are kept in the trie.
+ */
+public class Automaton {
+    final int size;
+    final int depth;  // longest spelling
+    final int[] children;  // start of children of each node
+    final char[] keys;
+    final int[] targets;
+    final int[] accepts;  // start of accepted pinyins of each node
+    final int[] accepted;
+    final int[] passes;  // start of passing pinyins of each node
+    final int[] passed;
+    final Char2ObjectMap<int[]> sequence = new Char2ObjectOpenHashMap<>();
+    // shuangpin tables, null if not used
+    byte[] alphabet;  // index of each key, -1 if absent
+    int[][] firsts;  // pinyins by first key
+    int[][] pairs;  // pinyins by first key * keys + second key
+    char[] tones;  // tone key of each pinyin
+
+    /**
+     * @param splits phonemes of pinyins, indexed by pinyin id
+     */
+    public Automaton(Phoneme[][] splits, Keyboard keyboard) {
+        size = splits.length;
+        boolean[] paired = keyboard.duo ? pairs(splits) : new boolean[size];
+        Node root = new Node();
+        Char2ObjectMap<IntSet> sequence = new Char2ObjectOpenHashMap<>();
+        for (int id = 0; id < splits.length; id++) {
+            Phoneme[] ps = splits[id];
+            if (ps == null || paired[id]) continue;
+            insert(root, ps, 0, id, keyboard.duo);
+            if (!keyboard.sequence) continue;
+            for (String s : ps[0].strs) {
+                if (s.isEmpty()) continue;
+                IntSet ids = sequence.get(s.charAt(0));
+                if (ids == null) sequence.put(s.charAt(0), ids = new IntOpenHashSet());
+                ids.add(id);
+            }
+        }
+        for (Char2ObjectMap.Entry<IntSet> e : sequence.char2ObjectEntrySet())
+            this.sequence.put(e.getCharKey(), sorted(e.getValue()));
+
+        // flatten in breadth first order, so children of a node are adjacent
+        List<Node> nodes = new ArrayList<>();
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        queue.add(root);
+        int depth = 0;
+        while (!queue.isEmpty()) {
+            Node n = queue.poll();
+            n.index = nodes.size();
+            nodes.add(n);
+            depth = Math.max(depth, n.depth);
+            queue.addAll(n.sorted());
+        }
+        // shuangpin tables read up to 3 chars
+        this.depth = pairs == null ? depth : Math.max(depth, 3);
+        int count = nodes.size();
+        children = new int[count + 1];
+        keys = new char[count - 1];
+        targets = new int[count - 1];
+        accepts = new int[count + 1];
+        passes = new int[count + 1];
+        IntArrayList accepted = new IntArrayList();
+        IntArrayList passed = new IntArrayList();
+        int edge = 0;
+        for (int i = 0; i < count; i++) {
+            Node n = nodes.get(i);
+            children[i] = edge;
+            for (Node c : n.sorted()) {
+                keys[edge] = c.key;
+                targets[edge++] = c.index;
+            }
+            accepts[i] = accepted.size();
+            accepted.addElements(accepted.size(), sorted(n.accepts));
+            passes[i] = passed.size();
+            passed.addElements(passed.size(), sorted(n.passes));
+        }
+        children[count] = edge;
+        accepts[count] = accepted.size();
+        passes[count] = passed.size();
+        this.accepted = accepted.toIntArray();
+        this.passed = passed.toIntArray();
+    }
+
+    // builds shuangpin tables, returns pinyins covered by them
+    private boolean[] pairs(Phoneme[][] splits) {
+        boolean[] ret = new boolean[splits.length];
+        byte[] alphabet = new byte[128];
+        Arrays.fill(alphabet, (byte) -1);
+        int keys = 0;
+        for (int id = 0; id < splits.length; id++) {
+            Phoneme[] ps = splits[id];
+            if (ps == null || !pairable(ps)) continue;
+            ret[id] = true;
+            for (int i = 0; i < 2; i++) for (String s : ps[i].strs)
+                if (alphabet[s.charAt(0)] == -1) alphabet[s.charAt(0)] = (byte) keys++;
+        }
+        if (keys == 0) return ret;
+        List<IntSet> firsts = new ArrayList<>();
+        List<IntSet> pairs = new ArrayList<>();
+        for (int i = 0; i < keys; i++) firsts.add(new IntOpenHashSet());
+        for (int i = 0; i < keys * keys; i++) pairs.add(new IntOpenHashSet());
+        tones = new char[splits.length];
+        for (int id = 0; id < splits.length; id++) {
+            if (!ret[id]) continue;
+            Phoneme[] ps = splits[id];
+            for (String a : ps[0].strs) {
+                firsts.get(alphabet[a.charAt(0)]).add(id);
+                for (String b : ps[1].strs)
+                    pairs.get(alphabet[a.charAt(0)] * keys + alphabet[b.charAt(0)]).add(id);
+            }
+            tones[id] = ps[2].strs[0].charAt(0);
+        }
+        this.alphabet = alphabet;
+        this.firsts = firsts.stream().map(Automaton::sorted).toArray(int[][]::new);
+        this.pairs = pairs.stream().map(Automaton::sorted).toArray(int[][]::new);
+        return ret;
+    }
+
+    private static boolean pairable(Phoneme[] ps) {
+        if (ps.length != 3 || ps[2].strs.length != 1) return false;
+        for (Phoneme p : ps) {
+            for (String s : p.strs) if (s.length() != 1 || s.charAt(0) >= 128) return false;
+        }
+        return true;
+    }
+
+    private static void insert(Node n, Phoneme[] ps, int index, int id, boolean duo) {
+        if (index == ps.length) return;
+        for (String s : ps[index].strs) {
+            Node cur = n;
+            for (int i = 0; i < s.length(); i++) {
+                cur = cur.child(s.charAt(i));
+                cur.passes.add(id);
+            }
+            // in shuangpin, initial and final are both required
+            if (!duo || index >= 1) cur.accepts.add(id);
+            insert(cur, ps, index + 1, id, duo);
+        }
+    }
+
+    private static int[] sorted(IntSet s) {
+        int[] ret = s.toIntArray();
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    /**
+     * Amount of pinyins covered, pinyins with larger ids are not matched.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Maximum amount of chars read by {@link #match}, so its result
+     * at positions further than this from the end of string does not
+     * change when the string is extended.
+     */
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * Adds match lengths of all pinyins at {@code start} to {@code ret},
+     * at {@code offset + pinyin id}, as {@link Pinyin#match} would produce.
+     *
+     * @return union of added match lengths
+     */
+    public int match(String str, int start, boolean partial, int[] ret, int offset) {
+        return match(str, start, str.length(), partial, ret, offset);
+    }
+
+    /**
+     * Same as {@link #match(String, int, boolean, int[], int)}, for the
+     * part of {@code str} before {@code end}.
+     */
+    public int match(String str, int start, int end, boolean partial, int[] ret, int offset) {
+        int any = pairs == null ? IndexSet.NONE : pairs(str, start, end, partial, ret, offset);
+        int node = 0;
+        for (int i = start; ; i++) {
+            int len = i - start;
+            int bit = 0x1 << len;
+            if (accepts[node] != accepts[node + 1]) any |= bit;
+            for (int j = accepts[node]; j < accepts[node + 1]; j++) ret[offset + accepted[j]] |= bit;
+            if (i == end) {
+                if (partial && len != 0 && passes[node] != passes[node + 1]) {
+                    any |= bit;
+                    for (int j = passes[node]; j < passes[node + 1]; j++) ret[offset + passed[j]] |= bit;
+                }
+                break;
+            }
+            if (len == Integer.SIZE - 1) break;
+            node = child(node, str.charAt(i));
+            if (node < 0) break;
+        }
+        if (start < end && !sequence.isEmpty()) {
+            int[] ids = sequence.get(str.charAt(start));
+            if (ids != null) {
+                any |= IndexSet.ONE;
+                for (int id : ids) ret[offset + id] |= IndexSet.ONE;
+            }
+        }
+        return any;
+    }
+
+    private int pairs(String str, int start, int end, boolean partial, int[] ret, int offset) {
+        if (start >= end) return IndexSet.NONE;
+        int a = key(str.charAt(start));
+        if (a < 0) return IndexSet.NONE;
+        if (start + 1 == end) {
+            if (!partial || firsts[a].length == 0) return IndexSet.NONE;
+            for (int id : firsts[a]) ret[offset + id] |= 0x1 << 1;
+            return 0x1 << 1;
+        }
+        int b = key(str.charAt(start + 1));
+        if (b < 0) return IndexSet.NONE;
+        int[] ids = pairs[a * firsts.length + b];
+        int any = IndexSet.NONE;
+        if (start + 2 < end) {
+            char tone = str.charAt(start + 2);
+            for (int id : ids) {
+                int bits = tones[id] == tone ? 0x1 << 2 | 0x1 << 3 : 0x1 << 2;
+                ret[offset + id] |= bits;
+                any |= bits;
+            }
+        } else if (ids.length != 0) {
+            for (int id : ids) ret[offset + id] |= 0x1 << 2;
+            any = 0x1 << 2;
+        }
+        return any;
+    }
+
+    private int key(char c) {
+        return c < 128 ? alphabet[c] : -1;
+    }
+
+    private int child(int node, char c) {
+        int lo = children[node], hi = children[node + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            char k = keys[mid];
+            if (k < c) lo = mid + 1;
+            else if (k > c) hi = mid - 1;
+            else return targets[mid];
+        }
+        return -1;
+    }
+
+    static class Node {
+        char key;
+        int index;
+        int depth;
+        Char2ObjectMap<Node> children = new Char2ObjectOpenHashMap<>();
+        IntSet accepts = new IntOpenHashSet();
+        IntSet passes = new IntOpenHashSet();
+
+        Node child(char c) {
+            Node ret = children.get(c);
+            if (ret == null) {
+                ret = new Node();
+                ret.key = c;
+                ret.depth = depth + 1;
+                children.put(c, ret);
+            }
+            return ret;
+        }
+
+        List<Node> sorted() {
+            List<Node> ret = new ArrayList<>(children.values());
+            ret.sort((a, b) -> Character.compare(a.key, b.key));
+            return ret;
+        }
+    }
+}
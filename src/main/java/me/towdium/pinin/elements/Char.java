@@ -1,22 +1,27 @@
 package me.towdium.pinin.elements;
 
+import me.towdium.pinin.PinIn;
 import me.towdium.pinin.utils.IndexSet;
 
 public class Char implements Element {
-    protected char ch;
+    final char ch;
     public static final Pinyin[] NONE = new Pinyin[0];
 
-    Pinyin[] pinyin;
+    final Pinyin[] pinyin;
+    final PinIn context;
 
-    public Char(char ch, Pinyin[] pinyin) {
+    public Char(char ch, Pinyin[] pinyin, PinIn context) {
         this.ch = ch;
         this.pinyin = pinyin;
+        this.context = context;
     }
 
     @Override
-    public IndexSet match(String str, int start, boolean partial) {
-        IndexSet ret = (str.charAt(start) == ch ? IndexSet.ONE : IndexSet.NONE).copy();
-        for (Element p : pinyin) ret.merge(p.match(str, start, partial));
+    public int match(String str, int start, boolean partial) {
+        int ret = str.charAt(start) == ch ? IndexSet.ONE : IndexSet.NONE;
+        if (pinyin.length == 0) return ret;
+        PinIn.State s = context.state();
+        for (Pinyin p : pinyin) ret = IndexSet.merge(ret, p.match(str, start, partial, s));
         return ret;
     }
 
@@ -27,14 +32,4 @@ public class Char implements Element {
     public Pinyin[] pinyins() {
         return pinyin;
     }
-
-    public static class Dummy extends Char {
-        public Dummy() {
-            super('\0', NONE);
-        }
-
-        public void set(char ch) {
-            this.ch = ch;
-        }
-    }
 }
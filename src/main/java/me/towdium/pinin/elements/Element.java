@@ -1,11 +1,10 @@
 package me.towdium.pinin.elements;
 
-import me.towdium.pinin.utils.IndexSet;
-
 /**
  * Author: Towdium
  * Date: 21/04/19
  */
 public interface Element {
-    IndexSet match(String str, int start, boolean partial);
+    // returns lengths of matches as bits, see IndexSet
+    int match(String str, int start, boolean partial);
 }
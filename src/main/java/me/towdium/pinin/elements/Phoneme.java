@@ -7,26 +7,37 @@ import java.util.Collections;
 import java.util.HashSet;
 
 public class Phoneme implements Element {
+    public static final Lookup DIRECT = (p, source, start, end, partial) -> match(p.strs, source, start, end, partial);
 
-    String[] strs;
+    public final int id;
+    final String[] strs;
 
     @Override
     public String toString() {
         return strs[0];
     }
 
-    public Phoneme(String str, PinIn p) {
-        reload(str, p);
+    public Phoneme(String str, PinIn.State s, int id) {
+        strs = expand(str, s);
+        this.id = id;
     }
 
-    public IndexSet match(String source, IndexSet idx, int start, boolean partial) {
-        if (strs.length == 1 && strs[0].isEmpty()) return new IndexSet(idx);
-        IndexSet ret = new IndexSet();
-        idx.foreach(i -> {
-            IndexSet is = match(source, start + i, partial);
-            is.offset(i);
-            ret.merge(is);
-        });
+    public int match(String source, int idx, int start, boolean partial) {
+        return match(source, idx, start, partial, DIRECT);
+    }
+
+    public int match(String source, int idx, int start, boolean partial, Lookup l) {
+        return match(source, idx, start, source.length(), partial, l);
+    }
+
+    // source ends at end, so its prefixes can be matched without copying
+    public int match(String source, int idx, int start, int end, boolean partial, Lookup l) {
+        if (strs.length == 1 && strs[0].isEmpty()) return idx;
+        int ret = IndexSet.NONE;
+        for (int v = idx; v != 0; v &= v - 1) {
+            int i = Integer.numberOfTrailingZeros(v);
+            ret = IndexSet.merge(ret, l.match(this, source, start + i, end, partial) << i);
+        }
         return ret;
     }
 
@@ -43,42 +54,54 @@ public class Phoneme implements Element {
         return strs.length == 1 && strs[0].isEmpty();
     }
 
-    static int strCmp(String a, String b, int aStart) {
-        int len = Math.min(a.length() - aStart, b.length());
+    static int strCmp(String a, int aEnd, String b, int aStart) {
+        int len = Math.min(aEnd - aStart, b.length());
         for (int i = 0; i < len; i++)
             if (a.charAt(i + aStart) != b.charAt(i)) return i;
         return len;
     }
 
     @Override
-    public IndexSet match(String source, int start, boolean partial) {
-        IndexSet ret = new IndexSet();
+    public int match(String source, int start, boolean partial) {
+        return match(strs, source, start, source.length(), partial);
+    }
+
+    private static int match(String[] strs, String source, int start, int end, boolean partial) {
+        int ret = IndexSet.NONE;
         if (strs.length == 1 && strs[0].isEmpty()) return ret;
         for (String str : strs) {
-            int size = strCmp(source, str, start);
-            if (partial && start + size == source.length()) ret.set(size);  // ending match
-            else if (size == str.length()) ret.set(size); // full match
+            int size = strCmp(source, end, str, start);
+            if (partial && start + size == end) ret |= 0x1 << size;  // ending match
+            else if (size == str.length()) ret |= 0x1 << size; // full match
         }
         return ret;
     }
 
-    public void reload(String str, PinIn p) {
+    /**
+     * Provides matches of single phonemes, so they can be cached,
+     * see {@link #match(String, int, boolean)}
+     */
+    public interface Lookup {
+        int match(Phoneme p, String source, int start, int end, boolean partial);
+    }
+
+    private static String[] expand(String str, PinIn.State p) {
         HashSet<String> ret = new HashSet<>();
         ret.add(str);
 
-        if (p.fCh2C() && str.startsWith("c")) Collections.addAll(ret, "c", "ch");
-        if (p.fSh2S() && str.startsWith("s")) Collections.addAll(ret, "s", "sh");
-        if (p.fZh2Z() && str.startsWith("z")) Collections.addAll(ret, "z", "zh");
-        if (p.fU2V() && str.startsWith("v"))
+        if (p.fCh2C && str.startsWith("c")) Collections.addAll(ret, "c", "ch");
+        if (p.fSh2S && str.startsWith("s")) Collections.addAll(ret, "s", "sh");
+        if (p.fZh2Z && str.startsWith("z")) Collections.addAll(ret, "z", "zh");
+        if (p.fU2V && str.startsWith("v"))
             ret.add("u" + str.substring(1));
-        if ((p.fAng2An() && str.endsWith("ang"))
-                || (p.fEng2En() && str.endsWith("eng"))
-                || (p.fIng2In() && str.endsWith("ing")))
+        if ((p.fAng2An && str.endsWith("ang"))
+                || (p.fEng2En && str.endsWith("eng"))
+                || (p.fIng2In && str.endsWith("ing")))
             ret.add(str.substring(0, str.length() - 1));
-        if ((p.fAng2An() && str.endsWith("an"))
-                || (p.fEng2En() && str.endsWith("en"))
-                || (p.fIng2In() && str.endsWith("in")))
+        if ((p.fAng2An && str.endsWith("an"))
+                || (p.fEng2En && str.endsWith("en"))
+                || (p.fIng2In && str.endsWith("in")))
             ret.add(str + 'g');
-        strs = ret.stream().map(p.keyboard()::keys).toArray(String[]::new);
+        return ret.stream().map(p.keyboard::keys).toArray(String[]::new);
     }
 }
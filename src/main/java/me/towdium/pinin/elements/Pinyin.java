@@ -3,56 +3,57 @@ package me.towdium.pinin.elements;
 import me.towdium.pinin.PinIn;
 import me.towdium.pinin.utils.IndexSet;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
 import java.util.stream.Stream;
 
 /**
  * Author: Towdium
  * Date: 21/04/19
+ * <p>
+ * Pinyins are shared by all contexts of a {@link me.towdium.pinin.Dictionary},
+ * phonemes of each configuration are kept by its {@link PinIn.State}.
  */
-public class Pinyin implements Element {
-    boolean duo = false;
-    boolean sequence = false;
+public class Pinyin {
     public final int id;
-    String raw;
+    final String raw;
 
-    private Phoneme[] phonemes;
-
-    public Pinyin(String str, PinIn p, int id) {
+    public Pinyin(String str, int id) {
         raw = str;
         this.id = id;
-        reload(str, p);
     }
 
-    public Phoneme[] phonemes() {
-        return phonemes;
+    public int match(String str, int start, boolean partial, PinIn.State s) {
+        return match(str, start, partial, s, Phoneme.DIRECT);
+    }
+
+    public int match(String str, int start, boolean partial, PinIn.State s, Phoneme.Lookup l) {
+        return match(str, start, str.length(), partial, s, l);
     }
 
-    public IndexSet match(String str, int start, boolean partial) {
-        IndexSet ret;
-        if (duo) {
+    // str ends at end, so its prefixes can be matched without copying
+    public int match(String str, int start, int end, boolean partial, PinIn.State s, Phoneme.Lookup l) {
+        Phoneme[] phonemes = s.phonemes(this);
+        int ret;
+        if (s.keyboard.duo) {
             // in shuangpin we require initial and final both present,
             // the phoneme, which is tone here, is optional
             ret = IndexSet.ZERO;
-            ret = phonemes[0].match(str, ret, start, partial);
-            ret = phonemes[1].match(str, ret, start, partial);
-            ret.merge(phonemes[2].match(str, ret, start, partial));
+            ret = phonemes[0].match(str, ret, start, end, partial, l);
+            ret = phonemes[1].match(str, ret, start, end, partial, l);
+            ret = IndexSet.merge(ret, phonemes[2].match(str, ret, start, end, partial, l));
         } else {
             // in other keyboards, match of precedent phoneme
             // is compulsory to match subsequent phonemes
             // for example, zhong1, z+h+ong+1 cannot match zong or zh1
-            IndexSet active = IndexSet.ZERO;
-            ret = new IndexSet();
+            int active = IndexSet.ZERO;
+            ret = IndexSet.NONE;
             for (Phoneme phoneme : phonemes) {
-                active = phoneme.match(str, active, start, partial);
-                if (active.isEmpty()) break;
-                ret.merge(active);
+                active = phoneme.match(str, active, start, end, partial, l);
+                if (active == IndexSet.NONE) break;
+                ret = IndexSet.merge(ret, active);
             }
         }
-        if (sequence && phonemes[0].matchSequence(str.charAt(start))) {
-            ret.set(1);
+        if (s.keyboard.sequence && start < end && phonemes[0].matchSequence(str.charAt(start))) {
+            ret |= IndexSet.ONE;
         }
 
         return ret;
@@ -63,16 +64,6 @@ public class Pinyin implements Element {
         return raw;
     }
 
-    public void reload(String str, PinIn p) {
-        Collection<String> split = p.keyboard().split(str);
-        List<Phoneme> l = new ArrayList<>();
-        for (String s : split) l.add(p.getPhoneme(s));
-        phonemes = l.toArray(new Phoneme[]{});
-
-        duo = p.keyboard().duo;
-        sequence = p.keyboard().sequence;
-    }
-
     public static boolean hasInitial(String s) {
         return Stream.of('a', 'e', 'i', 'o', 'u', 'v').noneMatch(i -> s.charAt(0) == i);
     }
@@ -0,0 +1,38 @@
+package me.towdium.pinin.searchers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Runs streaming searches on executors for {@link Searcher#searchAsync}.
+ * Searches are serialized by given lock, if any. Threads waiting on a
+ * {@link Lock} are parked, so virtual threads don't pin their carrier
+ * as they would waiting on a monitor.
+ */
+class Async {
+    static <T> CompletableFuture<List<T>> search(Searcher<T> s, Lock lock, String name, Executor executor) {
+        CompletableFuture<List<T>> ret = new CompletableFuture<>();
+        executor.execute(() -> {
+            if (ret.isDone()) return;
+            try {
+                List<T> list = new ArrayList<>();
+                if (lock == null) s.search(name, list::add, ret::isDone);
+                else {
+                    lock.lock();
+                    try {
+                        s.search(name, list::add, ret::isDone);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                ret.complete(list);
+            } catch (Throwable e) {
+                ret.completeExceptionally(e);
+            }
+        });
+        return ret;
+    }
+}
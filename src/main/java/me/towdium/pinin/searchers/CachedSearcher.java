@@ -7,6 +7,9 @@ import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import me.towdium.pinin.PinIn;
 
 import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static me.towdium.pinin.searchers.Searcher.Logic.*;
@@ -17,6 +20,8 @@ public class CachedSearcher<T> extends SimpleSearcher<T> {
     int lenCached = 0;  // longest string with cached result
     int maxCached = 0;  // maximum amount of cached results
     int total = 0;  // total characters of all strings
+    int inserted = 0;  // insertions since last search
+    boolean removed = false;  // whether results contain removed entries
     Stats<String> stats = new Stats<>();
 
     Map<String, IntList> cache = new HashMap<>();
@@ -32,38 +37,124 @@ public class CachedSearcher<T> extends SimpleSearcher<T> {
 
     @Override
     public void put(String name, T identifier) {
-        reset();
         for (int i = 0; i < name.length(); i++)
             context.getChar(name.charAt(i));
         total += name.length();
-        all.add(all.size());
         lenCached = 0;
         maxCached = 0;
         super.put(name, identifier);
+        insert(objs.size() - 1);
+    }
+
+    @Override
+    void erase(int id) {
+        total -= strs.length(strs.offsets().getInt(id));
+        lenCached = 0;
+        maxCached = 0;
+        removed = true;
+        super.erase(id);
+    }
+
+    // lists can be shared by several keys, removing from them is still valid
+    private void prune() {
+        Set<IntList> lists = Collections.newSetFromMap(new IdentityHashMap<>());
+        lists.add(all);
+        lists.addAll(cache.values());
+        for (IntList i : lists) i.removeIf((IntPredicate) strs::removed);
+        removed = false;
+    }
+
+    // adds new entry to cached results it matches, results are
+    // dropped instead when there are more insertions than results
+    // between searches, as updating would take longer than searching
+    private void insert(int id) {
+        if (!cache.isEmpty() && ++inserted > cache.size()) cache.clear();
+        Map<IntList, List<String>> groups = new IdentityHashMap<>();
+        cache.forEach((k, v) -> groups.computeIfAbsent(v, l -> new ArrayList<>()).add(k));
+        Searcher.Logic filter = logic == EQUAL ? BEGIN : logic;
+        int offset = strs.offsets().getInt(id);
+        groups.forEach((l, keys) -> {
+            List<String> hit = new ArrayList<>();
+            List<String> miss = new ArrayList<>();
+            for (String k : keys) {
+                acc.search(k);
+                (filter.test(acc, 0, offset) ? hit : miss).add(k);
+            }
+            if (l == all) {
+                // all is updated in place, so it can only be kept by hits
+                if (!miss.isEmpty()) {
+                    IntList copy = new IntArrayList(l);
+                    miss.forEach(k -> cache.put(k, copy));
+                }
+            } else if (miss.isEmpty()) l.add(id);
+            else if (!hit.isEmpty()) {
+                IntList copy = new IntArrayList(l);
+                copy.add(id);
+                hit.forEach(k -> cache.put(k, copy));
+            }
+        });
+        all.add(id);
     }
 
     @Override
     public List<T> search(String name) {
+        if (!prepare()) return new ArrayList<>();
+        return test(name).stream().map(i -> objs.get(i)).collect(Collectors.toList());
+    }
+
+    /**
+     * Passes entries in insertion order, tested against the cached
+     * prefix without collecting them.
+     */
+    @Override
+    public void search(String name, Predicate<? super T> consumer) {
+        search(name, consumer, () -> false);
+    }
+
+    /**
+     * Cancelled filtering of a prefix is not cached.
+     */
+    @Override
+    public void search(String name, Predicate<? super T> consumer, BooleanSupplier cancelled) {
+        if (!prepare()) return;
+        IntList is = filter(name.substring(0, Math.min(name.length(), lenCached)), cancelled);
+        if (is == null) return;
+        boolean check = logic == EQUAL || name.length() > lenCached;
+        if (check) acc.search(name);
+        for (int j = 0; j < is.size(); j++) {
+            if (cancelled.getAsBoolean()) return;
+            int i = is.getInt(j);
+            if (check && !logic.test(acc, 0, strs.offsets().getInt(i))) continue;
+            if (!consumer.test(objs.get(i))) return;
+        }
+    }
+
+    // returns false if there is nothing to search
+    private boolean prepare() {
         ticket.renew();
-        if (all.isEmpty()) return new ArrayList<>();
+        inserted = 0;
+        if (removed) prune();
+        if (all.isEmpty()) return false;
 
         if (maxCached == 0) {
             float totalSearch = logic == CONTAIN ? total : all.size();
             maxCached = (int) (scale * Math.ceil(2 * Math.log(totalSearch) / Math.log(2) + 16));
         }
         if (lenCached == 0) lenCached = (int) Math.ceil(Math.log(maxCached) / Math.log(8));
-        return test(name).stream().map(i -> objs.get(i)).collect(Collectors.toList());
+        return true;
     }
 
     @Override
     public void reset() {
         super.reset();
+        cache.clear();
         stats.reset();
         lenCached = 0;
         maxCached = 0;
     }
 
-    private IntList filter(String name) {
+    // returns null if cancelled
+    private IntList filter(String name, BooleanSupplier cancelled) {
         IntList ret;
         if (name.isEmpty()) return all;
 
@@ -71,7 +162,8 @@ public class CachedSearcher<T> extends SimpleSearcher<T> {
         stats.count(name);
 
         if (ret == null) {
-            IntList base = filter(name.substring(0, name.length() - 1));
+            IntList base = filter(name.substring(0, name.length() - 1), cancelled);
+            if (base == null) return null;
             if (cache.size() >= maxCached) {
                 String least = stats.least(cache.keySet(), name);
                 if (!least.equals(name)) cache.remove(least);
@@ -82,6 +174,7 @@ public class CachedSearcher<T> extends SimpleSearcher<T> {
             IntArrayList tmp = new IntArrayList();
             Searcher.Logic filter = logic == EQUAL ? BEGIN : logic;
             for (int i : base) {
+                if (cancelled.getAsBoolean()) return null;
                 if (filter.test(acc, 0, strs.offsets().getInt(i))) tmp.add(i);
             }
 
@@ -99,7 +192,7 @@ public class CachedSearcher<T> extends SimpleSearcher<T> {
     }
 
     private IntList test(String name) {
-        IntList is = filter(name.substring(0, Math.min(name.length(), lenCached)));
+        IntList is = filter(name.substring(0, Math.min(name.length(), lenCached)), () -> false);
         if (logic == EQUAL || name.length() > lenCached) {
             IntArrayList ret = new IntArrayList();
             acc.search(name);
@@ -0,0 +1,305 @@
+package me.towdium.pinin.searchers;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+import me.towdium.pinin.PinIn;
+import me.towdium.pinin.utils.Accelerator;
+import me.towdium.pinin.utils.Compressor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Thread safe variant of {@link TreeSearcher}.
+ * <p>
+ * Entries are kept in a list of {@link TreeSearcher} segments, which
+ * are never modified once published, and a small buffer of recent
+ * entries. Each write publishes a new snapshot of them, so searches
+ * run concurrently without locking, each thread with its own
+ * accelerator. Writes are serialized. When the buffer is full, it
+ * is built into a segment, and adjacent segments of similar size are
+ * merged, so the amount of segments grows logarithmically.
+ * <p>
+ * Removed entries of segments are recorded as tombstones in the
+ * snapshot and dropped when segments are merged. Segments with more
+ * removed entries than remaining ones are rebuilt in background, on a
+ * thread of their own, without holding up writers.
+ */
+public class ConcurrentTreeSearcher<T> implements Searcher<T> {
+    static final int THRESHOLD = 128;
+    // shared by all searchers, so compaction never blocks threads of common pool
+    static final Executor COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread ret = new Thread(r, "PinIn compactor");
+        ret.setDaemon(true);
+        return ret;
+    });
+
+    final PinIn context;
+    final Logic logic;
+    final PinIn.Ticket ticket;
+    final ThreadLocal<Accelerator> acc;
+    final ThreadLocal<Hits> hits = ThreadLocal.withInitial(Hits::new);
+    volatile Snapshot<T> snapshot = new Snapshot<>(
+            Collections.emptyList(), Collections.emptyList(), new Buffer<>(), 0);
+    // segments with pending compaction, guarded by this
+    final Set<TreeSearcher<T>> compacting = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public ConcurrentTreeSearcher(Logic logic, PinIn context) {
+        this.logic = logic;
+        this.context = context;
+        acc = ThreadLocal.withInitial(() -> new Accelerator(context));
+        ticket = context.ticket(this::reload);
+    }
+
+    @Override
+    public synchronized void put(String name, T identifier) {
+        snapshot = put(snapshot, name, identifier);
+    }
+
+    @Override
+    public synchronized void remove(T identifier) {
+        snapshot = remove(snapshot, identifier);
+    }
+
+    /**
+     * Readers see either the old entries or the new one, never neither.
+     */
+    @Override
+    public synchronized void update(String name, T identifier) {
+        snapshot = put(remove(snapshot, identifier), name, identifier);
+    }
+
+    @Override
+    public List<T> search(String name) {
+        return search(name, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Results of earlier segments come first, then recent entries.
+     */
+    @Override
+    public List<T> search(String name, int limit) {
+        return search(name, limit, () -> false);
+    }
+
+    @Override
+    public void search(String name, Predicate<? super T> consumer) {
+        search(name, consumer, () -> false);
+    }
+
+    /**
+     * Streams entries of each segment in traversal order, then recent
+     * entries, without collecting them. Cancellation is checked as in
+     * {@link TreeSearcher}. Accelerator and dedupe set are kept per
+     * thread, so the consumer should not search this searcher again.
+     */
+    @Override
+    public void search(String name, Predicate<? super T> consumer, BooleanSupplier cancelled) {
+        ticket.renew();
+        Snapshot<T> s = snapshot;
+        Accelerator a = acc.get();
+        Hits h = hits.get();
+        a.search(name);
+        for (int i = 0; i < s.segments.size(); i++)
+            if (!s.segments.get(i).search(a, h, s.dead.get(i), consumer, cancelled)) return;
+        for (int i = 0; i < s.size; i++) {
+            if (cancelled.getAsBoolean()) return;
+            a.setProvider(s.buffer.names[i]);
+            if (logic.test(a, 0, 0) && !consumer.test(s.buffer.objects[i])) return;
+        }
+    }
+
+    /**
+     * Searches are not serialized, as they run concurrently anyway.
+     */
+    @Override
+    public CompletableFuture<List<T>> searchAsync(String name, Executor executor) {
+        CompletableFuture<List<T>> ret = new CompletableFuture<>();
+        executor.execute(() -> {
+            if (ret.isDone()) return;
+            try {
+                ret.complete(search(name, Integer.MAX_VALUE, ret::isDone));
+            } catch (Throwable e) {
+                ret.completeExceptionally(e);
+            }
+        });
+        return ret;
+    }
+
+    private List<T> search(String name, int limit, BooleanSupplier cancelled) {
+        ticket.renew();
+        Snapshot<T> s = snapshot;
+        Accelerator a = acc.get();
+        Hits h = hits.get();
+        a.search(name);
+        List<T> ret = new ArrayList<>();
+        for (int i = 0; i < s.segments.size() && ret.size() < limit; i++) {
+            if (cancelled.getAsBoolean()) return ret;
+            s.segments.get(i).search(a, h, ret, s.dead.get(i), limit - ret.size());
+        }
+        for (int i = 0; i < s.size && ret.size() < limit; i++) {
+            if (cancelled.getAsBoolean()) return ret;
+            a.setProvider(s.buffer.names[i]);
+            if (logic.test(a, 0, 0)) ret.add(s.buffer.objects[i]);
+        }
+        return ret;
+    }
+
+    @Override
+    public PinIn context() {
+        return context;
+    }
+
+    public void refresh() {
+        ticket.renew();
+    }
+
+    private synchronized void reload() {
+        for (TreeSearcher<T> i : snapshot.segments) i.refresh();
+    }
+
+    private Snapshot<T> put(Snapshot<T> s, String name, T identifier) {
+        Buffer<T> buffer = s.buffer;
+        int size = s.size;
+        // slots beyond size are invisible to published snapshots,
+        // so we can fill them before publishing the new one
+        buffer.names[size] = name;
+        buffer.objects[size] = identifier;
+        size++;
+        if (size < THRESHOLD) return new Snapshot<>(s.segments, s.dead, buffer, size);
+        List<TreeSearcher<T>> segments = new ArrayList<>(s.segments);
+        List<BitSet> dead = new ArrayList<>(s.dead);
+        TreeSearcher<T> segment = new TreeSearcher<>(logic, context);
+        segment.putAll(Arrays.asList(buffer.names), Arrays.asList(buffer.objects));
+        segments.add(segment);
+        dead.add(TreeSearcher.NONE);
+        merge(segments, dead);
+        return new Snapshot<>(Collections.unmodifiableList(segments),
+                Collections.unmodifiableList(dead), new Buffer<>(), 0);
+    }
+
+    private Snapshot<T> remove(Snapshot<T> s, T identifier) {
+        List<BitSet> dead = new ArrayList<>(s.dead);
+        for (int i = 0; i < s.segments.size(); i++) {
+            // lookup of segments is only used by writers
+            TreeSearcher<T> segment = s.segments.get(i);
+            IntList ids = segment.lookup.remove(identifier);
+            if (ids.isEmpty()) continue;
+            BitSet set = (BitSet) s.dead.get(i).clone();
+            ids.forEach((IntConsumer) set::set);
+            dead.set(i, set);
+            if (set.cardinality() * 2 > segment.objects.size() && compacting.add(segment)) compact(segment, set);
+        }
+        // buffer of published snapshots is shared, so it is copied
+        Buffer<T> buffer = new Buffer<>();
+        int size = 0;
+        for (int i = 0; i < s.size; i++) {
+            if (Objects.equals(s.buffer.objects[i], identifier)) continue;
+            buffer.names[size] = s.buffer.names[i];
+            buffer.objects[size] = s.buffer.objects[i];
+            size++;
+        }
+        return new Snapshot<>(s.segments, Collections.unmodifiableList(dead), buffer, size);
+    }
+
+    // rebuilds segment without given removed entries outside the lock,
+    // then publishes it if the segment still exists by then
+    private void compact(TreeSearcher<T> segment, BitSet dead) {
+        COMPACTOR.execute(() -> {
+            TreeSearcher<T> replace = null;
+            try {
+                List<String> names = new ArrayList<>();
+                List<T> objects = new ArrayList<>();
+                transfer(segment, dead, names, objects);
+                replace = new TreeSearcher<>(logic, context);
+                replace.putAll(names, objects);
+            } finally {
+                synchronized (this) {
+                    compacting.remove(segment);
+                    if (replace != null) publish(segment, dead, replace);
+                }
+            }
+        });
+    }
+
+    private void publish(TreeSearcher<T> segment, BitSet dead, TreeSearcher<T> replace) {
+        Snapshot<T> s = snapshot;
+        int index = s.segments.indexOf(segment);
+        if (index < 0) return;
+        // entries removed during rebuild are removed from replacement as well,
+        // each of them had its identifier removed, so all its entries go
+        BitSet removed = (BitSet) s.dead.get(index).clone();
+        removed.andNot(dead);
+        BitSet set = removed.isEmpty() ? TreeSearcher.NONE : new BitSet();
+        for (int i = removed.nextSetBit(0); i >= 0; i = removed.nextSetBit(i + 1))
+            replace.lookup.remove(segment.objects.get(i)).forEach((IntConsumer) set::set);
+        List<TreeSearcher<T>> segments = new ArrayList<>(s.segments);
+        List<BitSet> deads = new ArrayList<>(s.dead);
+        segments.set(index, replace);
+        deads.set(index, set);
+        snapshot = new Snapshot<>(Collections.unmodifiableList(segments),
+                Collections.unmodifiableList(deads), s.buffer, s.size);
+    }
+
+    private void merge(List<TreeSearcher<T>> segments, List<BitSet> dead) {
+        while (segments.size() >= 2) {
+            int last = segments.size() - 1;
+            TreeSearcher<T> a = segments.get(last - 1);
+            TreeSearcher<T> b = segments.get(last);
+            if (b.objects.size() < a.objects.size()) return;
+            List<String> names = new ArrayList<>();
+            List<T> objects = new ArrayList<>();
+            transfer(a, dead.get(last - 1), names, objects);
+            transfer(b, dead.get(last), names, objects);
+            TreeSearcher<T> merged = new TreeSearcher<>(logic, context);
+            merged.putAll(names, objects);
+            segments.remove(last);
+            segments.set(last - 1, merged);
+            dead.remove(last);
+            dead.set(last - 1, TreeSearcher.NONE);
+        }
+    }
+
+    private static <T> void transfer(TreeSearcher<T> from, BitSet dead, List<String> names, List<T> objects) {
+        Compressor strs = from.strs;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < from.objects.size(); i++) {
+            if (dead.get(i)) continue;
+            sb.setLength(0);
+            for (int j = strs.offsets().getInt(i); !strs.end(j); j++) sb.append(strs.get(j));
+            names.add(sb.toString());
+            objects.add(from.objects.get(i));
+        }
+    }
+
+    static class Snapshot<T> {
+        final List<TreeSearcher<T>> segments;
+        final List<BitSet> dead;  // removed ids of each segment
+        final Buffer<T> buffer;
+        final int size;
+
+        Snapshot(List<TreeSearcher<T>> segments, List<BitSet> dead, Buffer<T> buffer, int size) {
+            this.segments = segments;
+            this.dead = dead;
+            this.buffer = buffer;
+            this.size = size;
+        }
+    }
+
+    static class Buffer<T> {
+        final String[] names = new String[THRESHOLD];
+        @SuppressWarnings("unchecked")
+        final T[] objects = (T[]) new Object[THRESHOLD];
+    }
+}
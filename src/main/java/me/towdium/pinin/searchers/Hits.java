@@ -0,0 +1,49 @@
+package me.towdium.pinin.searchers;
+
+import java.util.Arrays;
+
+/**
+ * Reusable set of ids found by a search, as a dense bitset, so
+ * duplicates are dropped and ids come out sorted without allocating
+ * per hit. Range of touched words is tracked, so scanning and clearing
+ * only cover it. Traversal is stopped once limit distinct ids are found.
+ */
+class Hits implements TreeSearcher.Sink {
+    long[] words = new long[1];
+    int from = Integer.MAX_VALUE;  // range of touched words
+    int to = 0;
+    int size = 0;
+    int limit = Integer.MAX_VALUE;
+
+    @Override
+    public boolean accept(int id) {
+        int w = id >>> 6;
+        if (w >= words.length) words = Arrays.copyOf(words, Math.max(w + 1, words.length * 2));
+        long bit = 1L << id;
+        if ((words[w] & bit) != 0) return true;
+        words[w] |= bit;
+        if (w < from) from = w;
+        if (w >= to) to = w + 1;
+        return ++size < limit;
+    }
+
+    // smallest id not less than given one, -1 if none
+    int next(int id) {
+        int w = Math.max(id >>> 6, from);
+        if (w >= to) return -1;
+        long v = w == id >>> 6 ? words[w] & -1L << id : words[w];
+        while (v == 0) {
+            if (++w >= to) return -1;
+            v = words[w];
+        }
+        return w << 6 | Long.numberOfTrailingZeros(v);
+    }
+
+    void clear(int limit) {
+        if (from < to) Arrays.fill(words, from, to, 0);
+        from = Integer.MAX_VALUE;
+        to = 0;
+        size = 0;
+        this.limit = limit;
+    }
+}
@@ -0,0 +1,43 @@
+package me.towdium.pinin.searchers;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntLists;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import me.towdium.pinin.utils.Compressor;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ids of entries by identifier, for removal. It is built on first
+ * removal, so searchers without removal don't pay for it.
+ */
+class Lookup<T> {
+    final List<T> objects;
+    final Compressor strs;
+    Map<T, IntList> data;
+
+    Lookup(List<T> objects, Compressor strs) {
+        this.objects = objects;
+        this.strs = strs;
+    }
+
+    void put(int id) {
+        if (data != null) add(id);
+    }
+
+    // ids are removed from lookup, callers should remove the entries
+    IntList remove(T identifier) {
+        if (data == null) {
+            data = new Object2ObjectOpenHashMap<>();
+            for (int i = 0; i < objects.size(); i++) if (!strs.removed(i)) add(i);
+        }
+        IntList ret = data.remove(identifier);
+        return ret == null ? IntLists.EMPTY_LIST : ret;
+    }
+
+    private void add(int id) {
+        data.computeIfAbsent(objects.get(id), k -> new IntArrayList(1)).add(id);
+    }
+}
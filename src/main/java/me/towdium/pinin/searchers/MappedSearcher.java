@@ -0,0 +1,476 @@
+package me.towdium.pinin.searchers;
+
+import it.unimi.dsi.fastutil.chars.CharArrayList;
+import it.unimi.dsi.fastutil.chars.CharList;
+import it.unimi.dsi.fastutil.chars.CharSet;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import me.towdium.pinin.Keyboard;
+import me.towdium.pinin.PinIn;
+import me.towdium.pinin.elements.Phoneme;
+import me.towdium.pinin.elements.Pinyin;
+import me.towdium.pinin.searchers.TreeSearcher.*;
+import me.towdium.pinin.utils.Accelerator;
+import me.towdium.pinin.utils.Compressor;
+import me.towdium.pinin.utils.IndexSet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+import static me.towdium.pinin.searchers.Searcher.Logic.EQUAL;
+
+/**
+ * Read only searcher over a snapshot of {@link TreeSearcher} written by
+ * {@link #save(TreeSearcher, Path)}. Snapshot is mapped into memory and
+ * searched in place, so opening it takes constant time and heap.
+ * <p>
+ * Results are ids of entries, which are indices in the order they
+ * were put. Snapshot records the keyboard and fuzzy flags it was built
+ * with, phoneme indices of large nodes are only used when context has
+ * the same config, otherwise all children are checked.
+ */
+public class MappedSearcher implements Searcher<Integer> {
+    static final int MAGIC = 0x50696E49;  // PinI
+    static final int VERSION = 1;
+    static final byte DENSE = 0, SLICE = 1, MAP = 2;
+
+    final ByteBuffer buf;
+    final PinIn context;
+    final Logic logic;
+    final String keyboard;
+    final int flags;
+    final int chars;  // start of strings
+    final int root;
+    final Accelerator acc;
+    final PinIn.Ticket ticket;
+    final Hits hits = new Hits();
+    final Lock lock = new ReentrantLock();  // serializes async searches
+    final Stream stream = new Stream();  // sink of streaming search, reused
+    final Accelerator.Provider strs = new Accelerator.Provider() {
+        @Override
+        public boolean end(int i) {
+            return get(i) == '\0';
+        }
+
+        @Override
+        public char get(int i) {
+            return buf.getChar(chars + i * 2);
+        }
+    };
+    boolean indexed;
+
+    private MappedSearcher(ByteBuffer buf, PinIn context) throws IOException {
+        this.buf = buf;
+        this.context = context;
+        if (buf.getInt(0) != MAGIC) throw new IOException("Not a PinIn snapshot");
+        if (buf.getInt(4) != VERSION) throw new IOException("Unsupported snapshot version: " + buf.getInt(4));
+        logic = Logic.values()[buf.getInt(8)];
+        flags = buf.getInt(12);
+        int length = buf.getShort(16);
+        char[] name = new char[length];
+        for (int i = 0; i < length; i++) name[i] = buf.getChar(18 + i * 2);
+        keyboard = new String(name);
+        chars = 22 + length * 2;
+        root = buf.getInt(buf.capacity() - 4);
+        acc = new Accelerator(context);
+        acc.setProvider(strs);
+        ticket = context.ticket(this::reload);
+        reload();
+    }
+
+    private void reload() {
+        PinIn.State s = context.state();
+        indexed = !keyboard.isEmpty() && keyboard.equals(name(s.keyboard)) && flags == flags(s);
+        acc.reset();
+    }
+
+    /**
+     * Maps snapshot file into memory, the file should not be modified
+     * while the searcher is in use.
+     */
+    public static MappedSearcher open(Path file, PinIn context) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new MappedSearcher(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()), context);
+        }
+    }
+
+    /**
+     * Writes snapshot of given searcher, which is limited to 2GB.
+     */
+    public static void save(TreeSearcher<?> searcher, Path file) throws IOException {
+        searcher.refresh();
+        OutputStream os = new Limit(new BufferedOutputStream(Files.newOutputStream(file)), Integer.MAX_VALUE);
+        try (DataOutputStream out = new DataOutputStream(os)) {
+            new Writer(searcher, out).write();
+        }
+    }
+
+    @Override
+    public List<Integer> search(String name) {
+        return search(name, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Stops traversal once limit entries are found, which are returned
+     * in id order.
+     */
+    @Override
+    public List<Integer> search(String name, int limit) {
+        ticket.renew();
+        acc.search(name);
+        acc.partial(logic != EQUAL);
+        List<Integer> ret = new ArrayList<>();
+        if (limit <= 0) return ret;
+        hits.clear(limit);
+        get(root, hits, 0);
+        for (int i = hits.next(0); i >= 0; i = hits.next(i + 1)) ret.add(i);
+        return ret;
+    }
+
+    @Override
+    public void search(String name, Predicate<? super Integer> consumer) {
+        search(name, consumer, () -> false);
+    }
+
+    /**
+     * Visits matching entries in traversal order, which is not sorted,
+     * entries found again through other paths are skipped. Cancellation
+     * is checked on entering each node and on each entry found.
+     */
+    @Override
+    public void search(String name, Predicate<? super Integer> consumer, BooleanSupplier cancelled) {
+        ticket.renew();
+        acc.search(name);
+        acc.partial(logic != EQUAL);
+        hits.clear(Integer.MAX_VALUE);
+        stream.consumer = consumer;
+        stream.cancelled = cancelled;
+        try {
+            get(root, stream, 0);
+        } finally {
+            // don't hold on to caller's objects
+            stream.consumer = null;
+            stream.cancelled = null;
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<Integer>> searchAsync(String name, Executor executor) {
+        return Async.search(this, lock, name, executor);
+    }
+
+    @Override
+    public void put(String name, Integer identifier) {
+        throw new UnsupportedOperationException("Snapshot is read only");
+    }
+
+    @Override
+    public PinIn context() {
+        return context;
+    }
+
+    public Logic logic() {
+        return logic;
+    }
+
+    // returns false if traversal is stopped by sink
+    private boolean get(int node, Sink ret, int offset) {
+        if (!ret.wants(Float.MAX_VALUE)) return false;  // snapshot keeps no weights
+        switch (buf.get(node)) {
+            case DENSE:
+                boolean full = logic == EQUAL;
+                if (!full && acc.search().length() == offset) return all(node, ret);
+                int size = buf.getInt(node + 1);
+                for (int i = 0; i < size; i++) {
+                    int ch = buf.getInt(node + 5 + i * 8);
+                    if (full ? acc.matches(offset, ch) : acc.begins(offset, ch))
+                        if (!ret.accept(buf.getInt(node + 9 + i * 8))) return false;
+                }
+                return true;
+            case SLICE:
+                return slice(node, ret, offset, buf.getInt(node + 1));
+            case MAP:
+                if (acc.search().length() == offset) {
+                    return logic == EQUAL ? leaves(node, ret) : all(node, ret);
+                } else return map(node, ret, offset);
+        }
+        return true;
+    }
+
+    private boolean slice(int node, Sink ret, int offset, int start) {
+        if (start == buf.getInt(node + 5)) return get(buf.getInt(node + 9), ret, offset);
+        else if (offset == acc.search().length()) {
+            return logic == EQUAL || all(node, ret);
+        } else {
+            for (int v = acc.get(strs.get(start), offset); v != 0; v &= v - 1)
+                if (!slice(node, ret, offset + Integer.numberOfTrailingZeros(v), start + 1)) return false;
+            return true;
+        }
+    }
+
+    private boolean map(int node, Sink ret, int offset) {
+        int children = node + 5 + buf.getInt(node + 1) * 4;
+        int size = buf.getInt(children);
+        int index = children + 4 + size * 8;
+        int buckets = buf.getInt(index);
+        if (acc.spans(offset) == IndexSet.NONE) {
+            // no pinyin matches here, only the char itself can
+            int direct = child(children, acc.search().charAt(offset));
+            return direct < 0 || get(direct, ret, offset + 1);
+        }
+        if (!indexed || buckets == 0) {
+            for (int i = 0; i < size; i++) {
+                char c = (char) buf.getInt(children + 4 + i * 8);
+                int n = buf.getInt(children + 8 + i * 8);
+                for (int v = acc.get(c, offset); v != 0; v &= v - 1)
+                    if (!get(n, ret, offset + Integer.numberOfTrailingZeros(v))) return false;
+            }
+            return true;
+        }
+        int direct = child(children, acc.search().charAt(offset));
+        if (direct >= 0 && !get(direct, ret, offset + 1)) return false;
+        int bucket = index + 4;
+        for (int i = 0; i < buckets; i++) {
+            char c = (char) buf.getInt(bucket);
+            Pinyin[] ps = context.getChar(c).pinyins();
+            int pinyin = buf.getInt(bucket + 4);
+            int count = buf.getInt(bucket + 8);
+            // dictionary might differ from the one snapshot was built with
+            if (pinyin >= ps.length || acc.get(context.state().phonemes(ps[pinyin])[0], offset) != IndexSet.NONE) {
+                for (int j = 0; j < count; j++) {
+                    char ch = (char) buf.getInt(bucket + 12 + j * 4);
+                    int n = child(children, ch);
+                    if (n < 0) continue;
+                    for (int v = acc.get(ch, offset); v != 0; v &= v - 1)
+                        if (!get(n, ret, offset + Integer.numberOfTrailingZeros(v))) return false;
+                }
+            }
+            bucket += 12 + count * 4;
+        }
+        return true;
+    }
+
+    // binary search for child of given char, children are sorted
+    private int child(int children, char c) {
+        int lo = 0, hi = buf.getInt(children) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            char k = (char) buf.getInt(children + 4 + mid * 8);
+            if (k < c) lo = mid + 1;
+            else if (k > c) hi = mid - 1;
+            else return buf.getInt(children + 8 + mid * 8);
+        }
+        return -1;
+    }
+
+    private boolean leaves(int node, Sink ret) {
+        int size = buf.getInt(node + 1);
+        for (int i = 0; i < size; i++)
+            if (!ret.accept(buf.getInt(node + 5 + i * 4))) return false;
+        return true;
+    }
+
+    private boolean all(int node, Sink ret) {
+        switch (buf.get(node)) {
+            case DENSE:
+                int size = buf.getInt(node + 1);
+                for (int i = 0; i < size; i++)
+                    if (!ret.accept(buf.getInt(node + 9 + i * 8))) return false;
+                return true;
+            case SLICE:
+                return all(buf.getInt(node + 9), ret);
+            case MAP:
+                if (!leaves(node, ret)) return false;
+                int children = node + 5 + buf.getInt(node + 1) * 4;
+                int count = buf.getInt(children);
+                for (int i = 0; i < count; i++)
+                    if (!all(buf.getInt(children + 8 + i * 8), ret)) return false;
+                return true;
+        }
+        return true;
+    }
+
+    // passes entries to consumer of streaming search, skipping found ones
+    class Stream implements Sink {
+        Predicate<? super Integer> consumer;
+        BooleanSupplier cancelled;
+
+        @Override
+        public boolean accept(int id) {
+            if (cancelled.getAsBoolean()) return false;
+            int size = hits.size;
+            hits.accept(id);
+            return hits.size == size || consumer.test(id);
+        }
+
+        @Override
+        public boolean wants(float max) {
+            return !cancelled.getAsBoolean();
+        }
+    }
+
+    static String name(Keyboard k) {
+        for (Field f : Keyboard.class.getFields()) {
+            try {
+                if (Modifier.isStatic(f.getModifiers()) && f.get(null) == k) return f.getName();
+            } catch (IllegalAccessException ignored) {
+            }
+        }
+        return "";
+    }
+
+    static int flags(PinIn.State s) {
+        boolean[] fs = {s.fZh2Z, s.fSh2S, s.fCh2C, s.fAng2An, s.fIng2In, s.fEng2En, s.fU2V};
+        int ret = 0;
+        for (int i = 0; i < fs.length; i++) if (fs[i]) ret |= 1 << i;
+        return ret;
+    }
+
+    /*
+     * Layout, all numbers are big endian:
+     *   header: magic, version, logic, flags, keyboard name as short length and chars
+     *   strings: size, chars of compressor
+     *   nodes, each written after its children:
+     *     dense: type, size, (offset, id) * size
+     *     slice: type, start, end, exit
+     *     map: type, leaves size, leaves, children size, (char, child) * size sorted by char,
+     *          buckets size, (char, pinyin index, size, chars) * size
+     *   trailer: root
+     * Offsets of strings are relative to strings, offsets of nodes are absolute.
+     */
+    static class Writer {
+        final TreeSearcher<?> searcher;
+        final DataOutputStream out;
+
+        Writer(TreeSearcher<?> searcher, DataOutputStream out) {
+            this.searcher = searcher;
+            this.out = out;
+        }
+
+        void write() throws IOException {
+            PinIn.State s = searcher.context.state();
+            String keyboard = name(s.keyboard);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(searcher.logic.ordinal());
+            out.writeInt(flags(s));
+            out.writeShort(keyboard.length());
+            out.writeChars(keyboard);
+            Compressor strs = searcher.strs;
+            out.writeInt(strs.size());
+            for (int i = 0; i < strs.size(); i++) out.writeChar(strs.get(i));
+            int root = write(searcher.root);
+            out.writeInt(root);
+        }
+
+        private int write(Node<?> n) throws IOException {
+            int ret;
+            if (n instanceof NDense) {
+                IntList data = ((NDense<?>) n).data;
+                ret = out.size();
+                out.writeByte(DENSE);
+                out.writeInt(data.size() / 2);
+                for (int i = 0; i < data.size(); i++) out.writeInt(data.getInt(i));
+            } else if (n instanceof NSlice) {
+                NSlice<?> slice = (NSlice<?>) n;
+                int exit = write(slice.exit);
+                ret = out.size();
+                out.writeByte(SLICE);
+                out.writeInt(slice.start);
+                out.writeInt(slice.end);
+                out.writeInt(exit);
+            } else {
+                NMap<?> map = (NMap<?>) n;
+                CharList chars = new CharArrayList();
+                if (map.children != null) chars.addAll(map.children.keySet());
+                chars.sort(null);
+                IntList children = new IntArrayList();
+                for (char c : chars) children.add(write(map.children.get(c)));
+                ret = out.size();
+                out.writeByte(MAP);
+                out.writeInt(map.leaves.size());
+                for (int i : map.leaves) out.writeInt(i);
+                out.writeInt(chars.size());
+                for (int i = 0; i < chars.size(); i++) {
+                    out.writeInt(chars.getChar(i));
+                    out.writeInt(children.getInt(i));
+                }
+                if (map instanceof NAcc) buckets(((NAcc<?>) map).index);
+                else out.writeInt(0);
+            }
+            return ret;
+        }
+
+        // phonemes are recorded by a char and index of pinyin starting with it
+        private void buckets(Map<Phoneme, CharSet> index) throws IOException {
+            List<char[]> buckets = new ArrayList<>();
+            IntList pinyins = new IntArrayList();
+            PinIn.State s = searcher.context.state();
+            index.forEach((p, cs) -> {
+                char[] chars = cs.toCharArray();
+                Pinyin[] ps = searcher.context.getChar(chars[0]).pinyins();
+                for (int i = 0; i < ps.length; i++) {
+                    if (s.phonemes(ps[i])[0] != p) continue;
+                    buckets.add(chars);
+                    pinyins.add(i);
+                    break;
+                }
+            });
+            out.writeInt(buckets.size());
+            for (int i = 0; i < buckets.size(); i++) {
+                char[] chars = buckets.get(i);
+                out.writeInt(chars[0]);
+                out.writeInt(pinyins.getInt(i));
+                out.writeInt(chars.length);
+                for (char c : chars) out.writeInt(c);
+            }
+        }
+    }
+
+    // counts written bytes, and fails before offsets no longer fit in int
+    static class Limit extends FilterOutputStream {
+        final long max;
+        long size;
+
+        Limit(OutputStream out, long max) {
+            super(out);
+            this.max = max;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            grow(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            grow(len);
+            out.write(b, off, len);
+        }
+
+        private void grow(int n) throws IOException {
+            size += n;
+            if (size >= max) throw new IOException("Snapshot exceeds 2GB");
+        }
+    }
+}
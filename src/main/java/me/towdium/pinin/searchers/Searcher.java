@@ -3,15 +3,92 @@ package me.towdium.pinin.searchers;
 import me.towdium.pinin.PinIn;
 import me.towdium.pinin.utils.Accelerator;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
 
 public interface Searcher<T> {
     void put(String name, T identifier);
 
+    /**
+     * Removes all entries with given identifier, searchers
+     * without removal throw {@link UnsupportedOperationException}.
+     */
+    default void remove(T identifier) {
+        throw new UnsupportedOperationException("Removal is not supported");
+    }
+
+    /**
+     * Replaces names of entries with given identifier by a single new name.
+     */
+    default void update(String name, T identifier) {
+        remove(identifier);
+        put(name, identifier);
+    }
+
     List<T> search(String name);
 
+    /**
+     * Passes matching entries to consumer one by one, until it returns
+     * false. Order of entries is up to implementation, which may avoid
+     * collecting them at all.
+     */
+    default void search(String name, Predicate<? super T> consumer) {
+        for (T t : search(name)) if (!consumer.test(t)) return;
+    }
+
+    /**
+     * Same as {@link #search(String, Predicate)}, but also stops once
+     * cancelled returns true, which implementations check regularly
+     * even when nothing is found.
+     */
+    default void search(String name, Predicate<? super T> consumer, BooleanSupplier cancelled) {
+        if (!cancelled.getAsBoolean()) search(name, consumer);
+    }
+
+    /**
+     * Searches on given executor, cancelling the returned future stops
+     * the search soon after, so superseded queries of typeahead don't
+     * keep running. Results are in the order of streaming search.
+     * Searchers are not thread safe, searchers of this library serialize
+     * searches of the same searcher on a private lock, and it is up to
+     * callers to cancel stale ones and not to modify the searcher
+     * meanwhile. This default does not serialize searches, so callers
+     * must not run them concurrently, or implementations override it.
+     */
+    default CompletableFuture<List<T>> searchAsync(String name, Executor executor) {
+        return Async.search(this, null, name, executor);
+    }
+
+    /**
+     * Searches at most limit entries, implementations stop once
+     * they are found. Results are in a deterministic order.
+     */
+    default List<T> search(String name, int limit) {
+        List<T> ret = new ArrayList<>();
+        if (limit > 0) search(name, t -> ret.add(t) && ret.size() < limit);
+        return ret;
+    }
+
     PinIn context();
 
+    /**
+     * Creates a session for typeahead, where each query usually extends
+     * or shortens the previous one by a few characters. Implementations
+     * may reuse work done for the common prefix of consecutive queries.
+     */
+    default Session<T> session() {
+        return this::search;
+    }
+
+    @FunctionalInterface
+    interface Session<T> {
+        List<T> search(String name);
+    }
+
     enum Logic {
         BEGIN {
             @Override
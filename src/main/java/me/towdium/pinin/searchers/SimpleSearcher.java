@@ -1,5 +1,6 @@
 package me.towdium.pinin.searchers;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
 import me.towdium.pinin.PinIn;
 import me.towdium.pinin.utils.Accelerator;
@@ -7,6 +8,15 @@ import me.towdium.pinin.utils.Compressor;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+import static me.towdium.pinin.searchers.Searcher.Logic.BEGIN;
+import static me.towdium.pinin.searchers.Searcher.Logic.EQUAL;
 
 public class SimpleSearcher<T> implements Searcher<T> {
     List<T> objs = new ArrayList<>();
@@ -15,6 +25,9 @@ public class SimpleSearcher<T> implements Searcher<T> {
     final PinIn context;
     final Logic logic;
     final PinIn.Ticket ticket;
+    final Lookup<T> lookup = new Lookup<>(objs, strs);
+    int modification = 0;
+    final Lock lock = new ReentrantLock();  // serializes async searches
 
     public SimpleSearcher(Logic logic, PinIn context) {
         this.context = context;
@@ -30,6 +43,24 @@ public class SimpleSearcher<T> implements Searcher<T> {
         for (int i = 0; i < name.length(); i++)
             context.getChar(name.charAt(i));
         objs.add(identifier);
+        lookup.put(objs.size() - 1);
+        modification++;
+    }
+
+    /**
+     * Ids of removed entries are not reused, their strings are dropped
+     * when removed ones take more space than remaining ones.
+     */
+    @Override
+    public void remove(T identifier) {
+        for (int i : lookup.remove(identifier)) erase(i);
+        if (strs.sparse()) strs.compact();
+    }
+
+    void erase(int id) {
+        strs.remove(id);
+        objs.set(id, null);
+        modification++;
     }
 
     @Override
@@ -39,17 +70,94 @@ public class SimpleSearcher<T> implements Searcher<T> {
         IntList offsets = strs.offsets();
         for (int i = 0; i < offsets.size(); i++) {
             int s = offsets.getInt(i);
-            if (logic.test(acc, 0, s)) ret.add(objs.get(i));
+            if (s >= 0 && logic.test(acc, 0, s)) ret.add(objs.get(i));
         }
         return ret;
     }
 
+    @Override
+    public void search(String name, Predicate<? super T> consumer) {
+        search(name, consumer, () -> false);
+    }
+
+    @Override
+    public void search(String name, Predicate<? super T> consumer, BooleanSupplier cancelled) {
+        acc.search(name);
+        IntList offsets = strs.offsets();
+        for (int i = 0; i < offsets.size(); i++) {
+            if (cancelled.getAsBoolean()) return;
+            int s = offsets.getInt(i);
+            if (s >= 0 && logic.test(acc, 0, s) && !consumer.test(objs.get(i))) return;
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<T>> searchAsync(String name, Executor executor) {
+        return Async.search(this, lock, name, executor);
+    }
+
     @Override
     public PinIn context() {
         return context;
     }
 
+    /**
+     * Session keeps entries matching each prefix of current query,
+     * so extending the query only tests entries matching the previous one.
+     */
+    @Override
+    public Searcher.Session<T> session() {
+        return new Session();
+    }
+
     public void reset() {
         acc.reset();
     }
+
+    class Session implements Searcher.Session<T> {
+        // entries matching each prefix of current query
+        final List<IntList> levels = new ArrayList<>();
+        final PinIn.Ticket ticket = context.ticket(levels::clear);
+        String query = "";
+        int modification;
+
+        @Override
+        public List<T> search(String name) {
+            ticket.renew();
+            if (modification != SimpleSearcher.this.modification) {
+                modification = SimpleSearcher.this.modification;
+                levels.clear();
+            }
+            if (levels.isEmpty()) {
+                IntList all = new IntArrayList(objs.size());
+                for (int i = 0; i < objs.size(); i++) if (!strs.removed(i)) all.add(i);
+                levels.add(all);
+                query = "";
+            }
+
+            int common = 0;
+            int max = Math.min(query.length(), name.length());
+            while (common < max && query.charAt(common) == name.charAt(common)) common++;
+            levels.subList(common + 1, levels.size()).clear();
+
+            // exact matching is not monotonic, so filter with prefix instead
+            Logic filter = logic == EQUAL ? BEGIN : logic;
+            IntList offsets = strs.offsets();
+            for (int i = common + 1; i <= name.length(); i++) {
+                acc.search(name, i);
+                IntList next = new IntArrayList();
+                for (int j : levels.get(i - 1))
+                    if (filter.test(acc, 0, offsets.getInt(j))) next.add(j);
+                levels.add(next);
+            }
+            query = name;
+
+            List<T> ret = new ArrayList<>();
+            acc.search(name);
+            for (int i : levels.get(name.length())) {
+                if (logic != EQUAL || logic.test(acc, 0, offsets.getInt(i))) ret.add(objs.get(i));
+            }
+            return ret;
+        }
+    }
 }
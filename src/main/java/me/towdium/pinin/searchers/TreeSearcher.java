@@ -10,12 +10,24 @@ import me.towdium.pinin.elements.Phoneme;
 import me.towdium.pinin.elements.Pinyin;
 import me.towdium.pinin.utils.Accelerator;
 import me.towdium.pinin.utils.Compressor;
+import me.towdium.pinin.utils.IndexSet;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 import java.util.function.IntConsumer;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
 
 import static me.towdium.pinin.searchers.Searcher.Logic.EQUAL;
 
@@ -33,7 +45,17 @@ public class TreeSearcher<T> implements Searcher<T> {
     final PinIn context;
     final Logic logic;
     final PinIn.Ticket ticket;
+    final Lookup<T> lookup = new Lookup<>(objects, strs);
+    int modification = 0;
+    final Hits hits = new Hits();
+    final Lock lock = new ReentrantLock();  // serializes async searches
+    final Stream stream = new Stream();  // sink of streaming search, reused
+    float[] weights = new float[16];  // weight of each entry
+    // stamps of entries visited by current streaming search
+    int[] seen = new int[0];
+    int stamp;
     static final int THRESHOLD = 128;
+    static final BitSet NONE = new BitSet();  // never modified
 
     public TreeSearcher(Logic logic, PinIn context) {
         this.logic = logic;
@@ -47,37 +69,649 @@ public class TreeSearcher<T> implements Searcher<T> {
     }
 
     public void put(String name, T identifier) {
+        put(name, identifier, 0);
+    }
+
+    /**
+     * Puts entry with a weight, such as its popularity, which is used
+     * by {@link #topK}. Entries put without weight weigh zero.
+     */
+    public void put(String name, T identifier, float weight) {
+        if (Float.isNaN(weight)) throw new IllegalArgumentException("Weight is NaN");
         ticket.renew();
+        weight(objects.size(), weight);
         int pos = strs.put(name);
-        int end = logic == Logic.CONTAIN ? name.length() : 1;
-        for (int i = 0; i < end; i++)
-            root = root.put(this, pos + i, objects.size());
+        insert(pos, name.length(), objects.size());
         objects.add(identifier);
+        lookup.put(objects.size() - 1);
+        modification++;
+    }
+
+    /**
+     * Puts entries in one pass, which is much faster than putting them
+     * one by one. The whole tree is rebuilt from sorted suffixes, with
+     * large subtrees built in parallel on the common pool.
+     */
+    public void putAll(List<String> names, List<T> identifiers) {
+        if (names.size() != identifiers.size())
+            throw new IllegalArgumentException("Names and identifiers have different sizes");
+        ticket.renew();
+        for (int i = 0; i < names.size(); i++) {
+            weight(objects.size(), 0);
+            strs.put(names.get(i));
+            objects.add(identifiers.get(i));
+            lookup.put(objects.size() - 1);
+        }
+        modification++;
+        build();
+    }
+
+    /**
+     * Removes paths of matching entries from the tree, their ids are
+     * not reused. Strings are dropped when removed ones take more space
+     * than remaining ones, which rebuilds the tree.
+     */
+    @Override
+    public void remove(T identifier) {
+        ticket.renew();
+        for (int i : lookup.remove(identifier)) {
+            int pos = strs.offsets().getInt(i);
+            int end = logic == Logic.CONTAIN ? strs.length(pos) : 1;
+            for (int j = 0; j < end; j++) root.remove(this, pos + j, i);
+            strs.remove(i);
+            objects.set(i, null);
+            modification++;
+        }
+        if (strs.sparse()) compact();
+    }
+
+    private void compact() {
+        strs.compact();
+        build();
+    }
+
+    // rebuilds the tree from all entries
+    private void build() {
+        // suffixes with position in higher and id in lower bits
+        // fastutil longs are not shipped, so the array is counted first
+        IntList offsets = strs.offsets();
+        int size = 0;
+        for (int i = 0; i < offsets.size(); i++) {
+            int start = offsets.getInt(i);
+            if (start >= 0) size += logic == Logic.CONTAIN ? strs.length(start) : 1;
+        }
+        long[] sorted = new long[size];
+        int k = 0;
+        for (int i = 0; i < offsets.size(); i++) {
+            int start = offsets.getInt(i);
+            if (start < 0) continue;
+            int end = logic == Logic.CONTAIN ? strs.length(start) : 1;
+            for (int j = 0; j < end; j++) sorted[k++] = (long) (start + j) << 32 | i;
+        }
+
+        ForkJoinPool.commonPool().invoke(new Sort(strs, sorted, 0, size, 0));
+        int[] pos = new int[size];
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            pos[i] = (int) (sorted[i] >>> 32);
+            ids[i] = (int) sorted[i];
+        }
+
+        naccs.clear();
+        root = size == 0 ? new NDense<>() : ForkJoinPool.commonPool()
+                .invoke(new Build<>(this, pos, ids, 0, size, 0));
+    }
+
+    private void weight(int id, float weight) {
+        if (id >= weights.length) weights = Arrays.copyOf(weights, Math.max(id + 1, weights.length * 2));
+        weights[id] = weight;
+    }
+
+    private void insert(int pos, int length, int identifier) {
+        int end = logic == Logic.CONTAIN ? length : 1;
+        for (int i = 0; i < end; i++)
+            root = root.put(this, pos + i, identifier);
     }
 
     public List<T> search(String s) {
+        return search(s, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Stops traversal once limit entries are found, which are returned
+     * in id order. Which entries are found first depends on layout of
+     * the tree, so they are not always the ones with lowest ids.
+     */
+    @Override
+    public List<T> search(String s, int limit) {
         ticket.renew();
         acc.search(s);
-        IntSet ret = new IntRBTreeSet();
-        root.get(this, ret, 0);
-        return ret.stream().map(i -> objects.get(i))
-                .collect(Collectors.toList());
+        List<T> ret = new ArrayList<>();
+        if (limit > 0) search(acc, hits, ret, NONE, limit);
+        return ret;
+    }
+
+    // search with external accelerator, which should have search string set
+    // it does not modify the tree, so it is safe to call concurrently
+    // as long as there is no writer and each thread uses its own accelerator and hits
+    void search(Accelerator a, Hits h, List<T> ret, BitSet dead, int limit) {
+        a.setProvider(strs);
+        a.partial(logic != EQUAL);
+        h.clear(limit);
+        // removed entries are not counted towards limit
+        root.get(this, a, dead == NONE ? h : i -> dead.get(i) || h.accept(i), 0);
+        for (int i = h.next(0); i >= 0; i = h.next(i + 1))
+            if (!dead.get(i)) ret.add(objects.get(i));
+    }
+
+    // streaming variant of above, hits are only used to skip entries found again
+    // returns false if stopped by consumer or cancellation
+    boolean search(Accelerator a, Hits h, BitSet dead, Predicate<? super T> consumer, BooleanSupplier cancelled) {
+        a.setProvider(strs);
+        a.partial(logic != EQUAL);
+        h.clear(Integer.MAX_VALUE);
+        return root.get(this, a, new Sink() {
+            @Override
+            public boolean accept(int id) {
+                if (cancelled.getAsBoolean()) return false;
+                if (dead.get(id)) return true;
+                int size = h.size;
+                h.accept(id);
+                return h.size == size || consumer.test(objects.get(id));
+            }
+
+            @Override
+            public boolean wants(float max) {
+                return !cancelled.getAsBoolean();
+            }
+        }, 0);
+    }
+
+    /**
+     * Visits matching entries in traversal order, which is not sorted,
+     * without collecting them. Entries found again through other paths
+     * are skipped with stamps kept by the searcher, so the consumer
+     * should not search this searcher again.
+     */
+    @Override
+    public void search(String s, Predicate<? super T> consumer) {
+        search(s, consumer, () -> false);
+    }
+
+    /**
+     * Cancellation is checked on entering each node and on each entry
+     * found, once cancelled, all remaining subtrees are skipped.
+     */
+    @Override
+    public void search(String s, Predicate<? super T> consumer, BooleanSupplier cancelled) {
+        ticket.renew();
+        acc.search(s);
+        acc.setProvider(strs);
+        acc.partial(logic != EQUAL);
+        stream.consumer = consumer;
+        stream.cancelled = cancelled;
+        stream.stamp = stamp();
+        try {
+            root.get(this, acc, stream, 0);
+        } finally {
+            // don't hold on to caller's objects
+            stream.consumer = null;
+            stream.cancelled = null;
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<T>> searchAsync(String name, Executor executor) {
+        return Async.search(this, lock, name, executor);
+    }
+
+    /**
+     * Returns k heaviest matching entries, heaviest first, ties broken
+     * by lower id. Subtrees are skipped once they can't hold anything
+     * heavier than the lightest entry kept, so entries tying with it
+     * might be left out in favor of ones found earlier.
+     */
+    public List<T> topK(String s, int k) {
+        ticket.renew();
+        acc.search(s);
+        acc.setProvider(strs);
+        acc.partial(logic != EQUAL);
+        List<T> ret = new ArrayList<>();
+        if (k <= 0 || objects.isEmpty()) return ret;  // heap would be empty
+        Top<T> top = new Top<>(this, k, stamp());
+        root.get(this, acc, top, 0);
+        for (int i : top.finish()) ret.add(objects.get(i));
+        return ret;
+    }
+
+    // new stamp to mark entries in seen
+    private int stamp() {
+        if (seen.length < objects.size()) seen = new int[Math.max(objects.size(), seen.length * 2)];
+        if (++stamp == 0) {
+            Arrays.fill(seen, 0);
+            stamp = 1;
+        }
+        return stamp;
+    }
+
+    private static Sink collect(IntSet s) {
+        return i -> {
+            s.add(i);
+            return true;
+        };
     }
 
     public PinIn context() {
         return context;
     }
 
+    /**
+     * Session continues from the nodes reached by previous query,
+     * so extending the query only follows transitions which consume
+     * the new characters. Sessions of {@link Logic#EQUAL} searchers
+     * fall back to plain search, as exact matching is not monotonic.
+     */
+    @Override
+    public Searcher.Session<T> session() {
+        return logic == EQUAL ? this::search : new Session();
+    }
+
     public void refresh() {
         ticket.renew();
     }
 
+    class Session implements Searcher.Session<T> {
+        // frontier reached by each prefix of current query
+        final List<Frontier<T>> levels = new ArrayList<>();
+        final PinIn.Ticket ticket = context.ticket(levels::clear);
+        String query = "";
+        int modification;
+
+        @Override
+        public List<T> search(String name) {
+            TreeSearcher.this.ticket.renew();
+            ticket.renew();
+            if (modification != TreeSearcher.this.modification) {
+                modification = TreeSearcher.this.modification;
+                levels.clear();
+            }
+            if (name.isEmpty()) return TreeSearcher.this.search(name);
+            if (levels.isEmpty()) {
+                // root level is never used for results, so it collects nothing
+                Frontier<T> f = new Frontier<>();
+                f.add(root, 0, 0, '\0', -1);
+                levels.add(f);
+                query = "";
+            }
+
+            int common = 0;
+            int max = Math.min(query.length(), name.length());
+            while (common < max && query.charAt(common) == name.charAt(common)) common++;
+            levels.subList(common + 1, levels.size()).clear();
+
+            acc.setProvider(strs);
+            acc.partial(true);
+            for (int i = common + 1; i <= name.length(); i++) {
+                acc.search(name, i);
+                levels.add(levels.get(i - 1).step(TreeSearcher.this, acc, i));
+            }
+            query = name;
+
+            List<T> ret = new ArrayList<>();
+            levels.get(name.length()).ids.forEach((IntConsumer) i -> ret.add(objects.get(i)));
+            return ret;
+        }
+    }
+
+    /**
+     * States of a search which consumed the whole query, or which can
+     * consume more characters when the query is extended.
+     * With partial matching, anything matching an extended query also
+     * matches the original one, so it is enough to continue from here.
+     * States entered with a transition ending at the end of query might
+     * rely on partial match, so the transition is checked again once
+     * the query is extended.
+     */
+    static class Frontier<T> {
+        final List<Node<T>> nodes = new ObjectArrayList<>();
+        final IntList states = new IntArrayList();  // position, offset, char, from
+        final IntList dense = new IntArrayList();  // name, identifier, offset, char, from
+        final IntSet ids = new IntRBTreeSet();
+
+        // node is reached with whole query consumed, by matching
+        // given char from given offset, or from nowhere with -1
+        void enter(TreeSearcher<T> p, Node<T> n, int pos, int offset, char ch, int from) {
+            add(n, pos, offset, ch, from);
+            n.get(p, collect(ids));
+        }
+
+        void add(Node<T> n, int pos, int offset, char ch, int from) {
+            if (n instanceof NDense) {
+                IntList data = ((NDense<T>) n).data;
+                for (int i = 0; i < data.size(); i += 2) {
+                    dense.add(data.getInt(i));
+                    dense.add(data.getInt(i + 1));
+                    dense.add(offset);
+                    dense.add(ch);
+                    dense.add(from);
+                }
+            } else {
+                nodes.add(n);
+                states.add(pos);
+                states.add(offset);
+                states.add(ch);
+                states.add(from);
+            }
+        }
+
+        Frontier<T> step(TreeSearcher<T> p, Accelerator a, int end) {
+            Frontier<T> ret = new Frontier<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                if (!valid(a, states, i * 4 + 1, end)) continue;
+                Node<T> n = nodes.get(i);
+                int pos = states.getInt(i * 4);
+                if (n.step(p, a, pos, states.getInt(i * 4 + 1), end, ret)) {
+                    ret.nodes.add(n);
+                    for (int j = i * 4; j < i * 4 + 4; j++) ret.states.add(states.getInt(j));
+                }
+            }
+            for (int i = 0; i < dense.size(); i += 5) {
+                if (!valid(a, dense, i + 2, end)) continue;
+                if (a.begins(dense.getInt(i + 2), dense.getInt(i))) {
+                    for (int j = i; j < i + 5; j++) ret.dense.add(dense.getInt(j));
+                    ret.ids.add(dense.getInt(i + 1));
+                }
+            }
+            return ret;
+        }
+
+        // check transition into the state at index, which is offset, char, from
+        private static boolean valid(Accelerator a, IntList l, int index, int end) {
+            int offset = l.getInt(index);
+            int from = l.getInt(index + 2);
+            if (offset != end - 1 || from < 0) return true;
+            return IndexSet.get(a.get((char) l.getInt(index + 1), from), offset - from);
+        }
+    }
+
+    // multikey quicksort of suffixes in range, which share first depth characters
+    @SuppressWarnings("serial")
+    static class Sort extends RecursiveAction {
+        static final int PARALLEL = 8192;  // minimum suffixes to fork
+
+        final Compressor strs;
+        final long[] data;
+        final int from, to, depth;
+
+        Sort(Compressor strs, long[] data, int from, int to, int depth) {
+            this.strs = strs;
+            this.data = data;
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            List<Sort> forked = new ArrayList<>();
+            int from = this.from, to = this.to, depth = this.depth;
+            while (to - from > 1) {
+                // three way partition by character at depth
+                char pivot = get(data[(from + to) >>> 1], depth);
+                int lt = from, gt = to, i = from;
+                while (i < gt) {
+                    char c = get(data[i], depth);
+                    if (c < pivot) swap(lt++, i++);
+                    else if (c > pivot) swap(i, --gt);
+                    else i++;
+                }
+                sort(from, lt, depth, forked);
+                sort(gt, to, depth, forked);
+                // equal part continues with next character
+                if (pivot == '\0') break;
+                from = lt;
+                to = gt;
+                depth++;
+            }
+            for (Sort s : forked) s.join();
+        }
+
+        private void sort(int from, int to, int depth, List<Sort> forked) {
+            Sort s = new Sort(strs, data, from, to, depth);
+            if (to - from >= PARALLEL) {
+                s.fork();
+                forked.add(s);
+            } else if (to - from > 1) s.compute();
+        }
+
+        private char get(long suffix, int depth) {
+            return strs.get((int) (suffix >>> 32) + depth);
+        }
+
+        private void swap(int a, int b) {
+            long tmp = data[a];
+            data[a] = data[b];
+            data[b] = tmp;
+        }
+    }
+
+    // builds node from sorted suffixes in range, which share first depth characters
+    @SuppressWarnings("serial")
+    static class Build<T> extends RecursiveTask<Node<T>> {
+        static final int PARALLEL = 1024;  // minimum suffixes to fork
+
+        final TreeSearcher<T> p;
+        final int[] pos, ids;
+        final int from, to, depth;
+
+        Build(TreeSearcher<T> p, int[] pos, int[] ids, int from, int to, int depth) {
+            this.p = p;
+            this.pos = pos;
+            this.ids = ids;
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Node<T> compute() {
+            if (to - from <= THRESHOLD / 2) {
+                NDense<T> ret = new NDense<>();
+                for (int i = from; i < to; i++) {
+                    ret.data.add(pos[i] + depth);
+                    ret.data.add(ids[i]);
+                    ret.max = Math.max(ret.max, p.weights[ids[i]]);
+                }
+                return ret;
+            }
+            // range is sorted, so common prefix of all is the one of first and last
+            int common = 0;
+            while (true) {
+                char c = p.strs.get(pos[from] + depth + common);
+                if (c == '\0' || c != p.strs.get(pos[to - 1] + depth + common)) break;
+                common++;
+            }
+            if (common == 0) return map(depth);
+            NSlice<T> ret = new NSlice<>(pos[from] + depth, pos[from] + depth + common);
+            ret.exit = map(depth + common);
+            return ret;
+        }
+
+        private NMap<T> map(int depth) {
+            NMap<T> ret = new NMap<>();
+            int i = from;
+            while (i < to && p.strs.get(pos[i] + depth) == '\0') i++;
+            if (i - from >= THRESHOLD) ret.leaves = new IntOpenHashSet(i - from);
+            for (int j = from; j < i; j++) {
+                ret.leaves.add(ids[j]);
+                ret.max = Math.max(ret.max, p.weights[ids[j]]);
+            }
+
+            CharList chars = new CharArrayList();
+            List<Build<T>> subs = new ArrayList<>();
+            while (i < to) {
+                char ch = p.strs.get(pos[i] + depth);
+                int j = i + 1;
+                while (j < to && p.strs.get(pos[j] + depth) == ch) j++;
+                chars.add(ch);
+                subs.add(new Build<>(p, pos, ids, i, j, depth + 1));
+                i = j;
+            }
+            for (Build<T> b : subs) if (b.to - b.from >= PARALLEL) b.fork();
+            for (int j = 0; j < subs.size(); j++) {
+                Build<T> b = subs.get(j);
+                Node<T> n = b.to - b.from >= PARALLEL ? b.join() : b.compute();
+                ret.put(chars.getChar(j), n);
+                ret.max = Math.max(ret.max, n.max());
+            }
+            return ret.children != null && ret.children.size() > 32 ? new NAcc<>(p, ret) : ret;
+        }
+    }
+
+    // receives ids reached by traversal, returns false to stop it
+    @FunctionalInterface
+    interface Sink {
+        boolean accept(int id);
+
+        // whether subtree of given max weight should be visited
+        default boolean wants(float max) {
+            return true;
+        }
+
+        // subtree reached with whole query consumed, false to stop
+        default <T> boolean all(TreeSearcher<T> p, Node<T> n) {
+            return n.get(p, this);
+        }
+    }
+
+    // passes entries to consumer of streaming search, skipping visited ones
+    class Stream implements Sink {
+        Predicate<? super T> consumer;
+        BooleanSupplier cancelled;
+        int stamp;
+
+        @Override
+        public boolean accept(int id) {
+            if (cancelled.getAsBoolean()) return false;
+            if (seen[id] == stamp) return true;
+            seen[id] = stamp;
+            return consumer.test(objects.get(id));
+        }
+
+        @Override
+        public boolean wants(float max) {
+            return !cancelled.getAsBoolean();
+        }
+    }
+
+    /**
+     * Keeps heaviest entries in a bounded heap. Subtrees which consumed
+     * the whole query are queued by max weight and expanded best first,
+     * so expanding stops at the first one which can't beat the heap.
+     */
+    static class Top<T> implements Sink {
+        final TreeSearcher<T> p;
+        final int[] heap;  // lightest kept entry on top
+        final int stamp;
+        final PriorityQueue<Node<T>> queue = new PriorityQueue<>((a, b) -> Float.compare(b.max(), a.max()));
+        int size;
+
+        Top(TreeSearcher<T> p, int k, int stamp) {
+            this.p = p;
+            this.heap = new int[Math.min(k, p.objects.size())];
+            this.stamp = stamp;
+        }
+
+        @Override
+        public boolean accept(int id) {
+            if (p.seen[id] == stamp) return true;
+            p.seen[id] = stamp;
+            if (size < heap.length) {
+                heap[size] = id;
+                up(size++);
+            } else if (p.weights[id] > p.weights[heap[0]]) {
+                heap[0] = id;
+                down(0);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean wants(float max) {
+            return size < heap.length || max > p.weights[heap[0]];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <U> boolean all(TreeSearcher<U> p, Node<U> n) {
+            if (wants(n.max())) queue.add((Node<T>) n);
+            return true;
+        }
+
+        // expands queued subtrees, returns kept ids heaviest first
+        int[] finish() {
+            Node<T> n;
+            while ((n = queue.poll()) != null && wants(n.max())) n.get(p, this);
+            int[] ret = Arrays.copyOf(heap, size);
+            IntArrays.quickSort(ret, (a, b) -> {
+                int c = Float.compare(p.weights[b], p.weights[a]);
+                return c != 0 ? c : Integer.compare(a, b);
+            });
+            return ret;
+        }
+
+        private void up(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!lighter(heap[i], heap[parent])) return;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void down(int i) {
+            while (true) {
+                int min = i;
+                for (int c = i * 2 + 1; c <= i * 2 + 2 && c < size; c++)
+                    if (lighter(heap[c], heap[min])) min = c;
+                if (min == i) return;
+                swap(i, min);
+                i = min;
+            }
+        }
+
+        // lighter first, then higher id, so it is dropped first
+        private boolean lighter(int a, int b) {
+            float wa = p.weights[a], wb = p.weights[b];
+            return wa < wb || wa == wb && a > b;
+        }
+
+        private void swap(int a, int b) {
+            int tmp = heap[a];
+            heap[a] = heap[b];
+            heap[b] = tmp;
+        }
+    }
+
     interface Node<T> {
-        void get(TreeSearcher<T> p, IntSet ret, int offset);
+        // both return false if traversal is stopped by sink
+        boolean get(TreeSearcher<T> p, Accelerator a, Sink ret, int offset);
 
-        void get(TreeSearcher<T> p, IntSet ret);
+        boolean get(TreeSearcher<T> p, Sink ret);
+
+        // max weight of entries in subtree, not lowered on removal
+        float max();
 
         Node<T> put(TreeSearcher<T> p, int name, int identifier);
+
+        // name should be present in the tree, empty nodes are kept
+        void remove(TreeSearcher<T> p, int name, int identifier);
+
+        // follow transitions from given position which end exactly at
+        // the end of query, returns whether there is any
+        default boolean step(TreeSearcher<T> p, Accelerator a, int pos, int offset, int end, Frontier<T> next) {
+            return false;
+        }
     }
 
     public static class NSlice<T> implements Node<T> {
@@ -90,13 +724,18 @@ public class TreeSearcher<T> implements Searcher<T> {
         }
 
         @Override
-        public void get(TreeSearcher<T> p, IntSet ret, int offset) {
-            get(p, ret, offset, 0);
+        public boolean get(TreeSearcher<T> p, Accelerator a, Sink ret, int offset) {
+            return !ret.wants(max()) || get(p, a, ret, offset, 0);
+        }
+
+        @Override
+        public boolean get(TreeSearcher<T> p, Sink ret) {
+            return exit.get(p, ret);
         }
 
         @Override
-        public void get(TreeSearcher<T> p, IntSet ret) {
-            exit.get(p, ret);
+        public float max() {
+            return exit.max();
         }
 
         @Override
@@ -111,8 +750,23 @@ public class TreeSearcher<T> implements Searcher<T> {
             return start == end ? exit : this;
         }
 
+        @Override
+        public void remove(TreeSearcher<T> p, int name, int identifier) {
+            exit.remove(p, name + end - start, identifier);
+        }
+
+        @Override
+        public boolean step(TreeSearcher<T> p, Accelerator a, int pos, int offset, int end, Frontier<T> next) {
+            char ch = p.strs.get(start + pos);
+            if (!IndexSet.get(a.get(ch, offset), end - offset)) return false;
+            if (start + pos + 1 == this.end) next.enter(p, exit, 0, end, ch, offset);
+            else next.enter(p, this, pos + 1, end, ch, offset);
+            return true;
+        }
+
         private void cut(TreeSearcher<T> p, int offset) {
             NMap<T> insert = new NMap<>();
+            insert.max = exit.max();
             if (offset + 1 == end) insert.put(p.strs.get(offset), exit);
             else {
                 NSlice<T> half = new NSlice<>(offset + 1, end);
@@ -123,15 +777,16 @@ public class TreeSearcher<T> implements Searcher<T> {
             end = offset;
         }
 
-        private void get(TreeSearcher<T> p, IntSet ret, int offset, int start) {
+        private boolean get(TreeSearcher<T> p, Accelerator a, Sink ret, int offset, int start) {
             if (this.start + start == end)
-                exit.get(p, ret, offset);
-            else if (offset == p.acc.search().length()) {
-                if (p.logic != EQUAL) exit.get(p, ret);
+                return exit.get(p, a, ret, offset);
+            else if (offset == a.search().length()) {
+                return p.logic == EQUAL || ret.all(p, exit);
             } else {
                 char ch = p.strs.get(this.start + start);
-                p.acc.get(ch, offset).foreach(i ->
-                        get(p, ret, offset + i, start + 1));
+                for (int v = a.get(ch, offset); v != 0; v &= v - 1)
+                    if (!get(p, a, ret, offset + Integer.numberOfTrailingZeros(v), start + 1)) return false;
+                return true;
             }
         }
     }
@@ -139,42 +794,63 @@ public class TreeSearcher<T> implements Searcher<T> {
     public static class NDense<T> implements Node<T> {
         // offset, object, offset, object
         IntList data = new IntArrayList();
+        float max = Float.NEGATIVE_INFINITY;
 
         @Override
-        public void get(TreeSearcher<T> p, IntSet ret, int offset) {
+        public boolean get(TreeSearcher<T> p, Accelerator a, Sink ret, int offset) {
+            if (!ret.wants(max)) return true;
             boolean full = p.logic == EQUAL;
-            if (!full && p.acc.search().length() == offset) get(p, ret);
-            else {
-                for (int i = 0; i < data.size() / 2; i++) {
-                    int ch = data.getInt(i * 2);
-                    if (full ? p.acc.matches(offset, ch) : p.acc.begins(offset, ch))
-                        ret.add(data.getInt(i * 2 + 1));
-                }
+            if (!full && a.search().length() == offset) return ret.all(p, this);
+            for (int i = 0; i < data.size() / 2; i++) {
+                int ch = data.getInt(i * 2);
+                int id = data.getInt(i * 2 + 1);
+                if (!ret.wants(p.weights[id])) continue;
+                if (full ? a.matches(offset, ch) : a.begins(offset, ch))
+                    if (!ret.accept(id)) return false;
             }
+            return true;
         }
 
         @Override
-        public void get(TreeSearcher<T> p, IntSet ret) {
+        public boolean get(TreeSearcher<T> p, Sink ret) {
             for (int i = 0; i < data.size() / 2; i++)
-                ret.add(data.getInt(i * 2 + 1));
+                if (!ret.accept(data.getInt(i * 2 + 1))) return false;
+            return true;
         }
 
         @Override
         public Node<T> put(TreeSearcher<T> p, int name, int identifier) {
             if (data.size() >= THRESHOLD) {
                 int pattern = data.getInt(0);
+                // slice without common prefix hands over to its exit,
+                // empty slices are never kept, as session steps rely on it
                 Node<T> ret = new NSlice<>(pattern, pattern + match(p));
                 for (int j = 0; j < data.size() / 2; j++)
-                    ret.put(p, data.getInt(j * 2), data.getInt(j * 2 + 1));
-                ret.put(p, name, identifier);
-                return ret;
+                    ret = ret.put(p, data.getInt(j * 2), data.getInt(j * 2 + 1));
+                return ret.put(p, name, identifier);
             } else {
                 data.add(name);
                 data.add(identifier);
+                max = Math.max(max, p.weights[identifier]);
                 return this;
             }
         }
 
+        @Override
+        public float max() {
+            return max;
+        }
+
+        @Override
+        public void remove(TreeSearcher<T> p, int name, int identifier) {
+            for (int i = 0; i < data.size() / 2; i++) {
+                if (data.getInt(i * 2) == name && data.getInt(i * 2 + 1) == identifier) {
+                    data.removeElements(i * 2, i * 2 + 2);
+                    return;
+                }
+            }
+        }
+
         private int match(TreeSearcher<T> p) {
             for (int i = 0; ; i++) {
                 char a = p.strs.get(data.getInt(0) + i);
@@ -189,26 +865,50 @@ public class TreeSearcher<T> implements Searcher<T> {
     public static class NMap<T> implements Node<T> {
         Char2ObjectMap<Node<T>> children;
         IntSet leaves = new IntArraySet(1);
+        float max = Float.NEGATIVE_INFINITY;
 
         @Override
-        public void get(TreeSearcher<T> p, IntSet ret, int offset) {
-            if (p.acc.search().length() == offset) {
-                if (p.logic == EQUAL) ret.addAll(leaves);
-                else get(p, ret);
-            } else if (children != null) {
-                children.forEach((c, n) -> p.acc.get(c, offset)
-                        .foreach(i -> n.get(p, ret, offset + i)));
+        public boolean get(TreeSearcher<T> p, Accelerator a, Sink ret, int offset) {
+            if (!ret.wants(max)) return true;
+            if (a.search().length() == offset) {
+                return p.logic == EQUAL ? leaves(ret) : ret.all(p, this);
+            } else if (children == null) return true;
+            else if (a.spans(offset) == IndexSet.NONE) {
+                // no pinyin matches here, only the char itself can
+                Node<T> n = children.get(a.search().charAt(offset));
+                return n == null || n.get(p, a, ret, offset + 1);
+            }
+            for (Char2ObjectMap.Entry<Node<T>> e : Char2ObjectMaps.fastIterable(children)) {
+                Node<T> n = e.getValue();
+                for (int v = a.get(e.getCharKey(), offset); v != 0; v &= v - 1)
+                    if (!n.get(p, a, ret, offset + Integer.numberOfTrailingZeros(v))) return false;
             }
+            return true;
+        }
+
+        @Override
+        public boolean get(TreeSearcher<T> p, Sink ret) {
+            if (!leaves(ret)) return false;
+            if (children == null) return true;
+            for (Node<T> n : children.values())
+                if (!ret.all(p, n)) return false;
+            return true;
         }
 
         @Override
-        public void get(TreeSearcher<T> p, IntSet ret) {
-            ret.addAll(leaves);
-            if (children != null) children.forEach((c, n) -> n.get(p, ret));
+        public float max() {
+            return max;
+        }
+
+        boolean leaves(Sink ret) {
+            for (IntIterator it = leaves.iterator(); it.hasNext(); )
+                if (!ret.accept(it.nextInt())) return false;
+            return true;
         }
 
         @Override
         public NMap<T> put(TreeSearcher<T> p, int name, int identifier) {
+            max = Math.max(max, p.weights[identifier]);
             if (p.strs.get(name) == '\0') {
                 if (leaves.size() >= THRESHOLD && leaves instanceof IntArraySet)
                     leaves = new IntOpenHashSet(leaves);
@@ -225,6 +925,36 @@ public class TreeSearcher<T> implements Searcher<T> {
                     new NAcc<>(p, this) : this;
         }
 
+        @Override
+        public void remove(TreeSearcher<T> p, int name, int identifier) {
+            char ch = p.strs.get(name);
+            if (ch == '\0') leaves.remove(identifier);
+            else if (children != null) {
+                Node<T> sub = children.get(ch);
+                if (sub != null) sub.remove(p, name + 1, identifier);
+            }
+        }
+
+        @Override
+        public boolean step(TreeSearcher<T> p, Accelerator a, int pos, int offset, int end, Frontier<T> next) {
+            if (children == null) return false;
+            if (a.spans(offset) == IndexSet.NONE) {
+                if (end - offset != 1) return false;
+                char direct = a.search().charAt(offset);
+                Node<T> n = children.get(direct);
+                if (n != null) next.enter(p, n, 0, end, direct, offset);
+                return n != null;
+            }
+            boolean ret = false;
+            for (Char2ObjectMap.Entry<Node<T>> i : children.char2ObjectEntrySet()) {
+                if (IndexSet.get(a.get(i.getCharKey(), offset), end - offset)) {
+                    next.enter(p, i.getValue(), 0, end, i.getCharKey(), offset);
+                    ret = true;
+                }
+            }
+            return ret;
+        }
+
         private void put(char ch, Node<T> n) {
             init();
             if (children.size() >= THRESHOLD && children instanceof Char2ObjectArrayMap)
@@ -238,48 +968,84 @@ public class TreeSearcher<T> implements Searcher<T> {
     }
 
     public static class NAcc<T> extends NMap<T> {
-        Map<Phoneme, CharSet> index = new Object2ObjectArrayMap<>();
+        // replaced as a whole on reload, so concurrent readers see either index
+        volatile Map<Phoneme, CharSet> index = new Object2ObjectArrayMap<>();
 
         private NAcc(TreeSearcher<T> p, NMap<T> n) {
             children = n.children;
             leaves = n.leaves;
+            max = n.max;
             reload(p);
-            p.naccs.add(this);
+            synchronized (p.naccs) {
+                p.naccs.add(this);
+            }
         }
 
         @Override
-        public void get(TreeSearcher<T> p, IntSet ret, int offset) {
-            if (p.acc.search().length() == offset) {
-                if (p.logic == EQUAL) ret.addAll(leaves);
-                else get(p, ret);
-            } else {
-                Node<T> n = children.get(p.acc.search().charAt(offset));
-                if (n != null) n.get(p, ret, offset + 1);
-                index.forEach((k, v) -> {
-                    if (!k.match(p.acc.search(), offset, true).isEmpty()) {
-                        v.forEach((IntConsumer) i -> p.acc.get((char) i, offset)
-                                .foreach(j -> children.get((char) i).get(p, ret, offset + j)));
+        public boolean get(TreeSearcher<T> p, Accelerator a, Sink ret, int offset) {
+            if (!ret.wants(max)) return true;
+            if (a.search().length() == offset) {
+                return p.logic == EQUAL ? leaves(ret) : ret.all(p, this);
+            }
+            Node<T> n = children.get(a.search().charAt(offset));
+            if (n != null && !n.get(p, a, ret, offset + 1)) return false;
+            if (a.spans(offset) == IndexSet.NONE) return true;
+            for (Map.Entry<Phoneme, CharSet> e : index.entrySet()) {
+                if (a.get(e.getKey(), offset) == IndexSet.NONE) continue;
+                for (CharIterator it = e.getValue().iterator(); it.hasNext(); ) {
+                    char c = it.nextChar();
+                    Node<T> child = children.get(c);
+                    for (int s = a.get(c, offset); s != 0; s &= s - 1)
+                        if (!child.get(p, a, ret, offset + Integer.numberOfTrailingZeros(s))) return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean step(TreeSearcher<T> p, Accelerator a, int pos, int offset, int end, Frontier<T> next) {
+            boolean ret = false;
+            char direct = a.search().charAt(offset);
+            if (end - offset == 1) {
+                Node<T> n = children.get(direct);
+                if (n != null) {
+                    next.enter(p, n, 0, end, direct, offset);
+                    ret = true;
+                }
+            }
+            if (a.spans(offset) == IndexSet.NONE) return ret;
+            for (Map.Entry<Phoneme, CharSet> e : index.entrySet()) {
+                if (a.get(e.getKey(), offset) == IndexSet.NONE) continue;
+                for (CharIterator it = e.getValue().iterator(); it.hasNext(); ) {
+                    char c = it.nextChar();
+                    if (c == direct && end - offset == 1) continue;
+                    if (IndexSet.get(a.get(c, offset), end - offset)) {
+                        next.enter(p, children.get(c), 0, end, c, offset);
+                        ret = true;
                     }
-                });
+                }
             }
+            return ret;
         }
 
         @Override
         public NAcc<T> put(TreeSearcher<T> p, int name, int identifier) {
             super.put(p, name, identifier);
-            index(p, p.strs.get(name));
+            index(p, index, p.strs.get(name));
             return this;
         }
 
         public void reload(TreeSearcher<T> p) {
-            index.clear();
-            children.keySet().forEach((IntConsumer) i -> index(p, (char) i));
+            Map<Phoneme, CharSet> replace = new Object2ObjectArrayMap<>();
+            children.keySet().forEach((IntConsumer) i -> index(p, replace, (char) i));
+            index = replace;
         }
 
-        private void index(TreeSearcher<T> p, char c) {
+        private static <T> void index(TreeSearcher<T> p, Map<Phoneme, CharSet> index, char c) {
             Char ch = p.context.getChar(c);
+            PinIn.State s = p.context.state();
             for (Pinyin py : ch.pinyins()) {
-                index.compute(py.phonemes()[0], (j, cs) -> {
+                index.compute(s.phonemes(py)[0], (j, cs) -> {
                     if (cs == null) return new CharArraySet();
                     else if (cs instanceof CharArraySet && cs.size() >= THRESHOLD && !cs.contains(c))
                         return new CharOpenHashSet(cs);
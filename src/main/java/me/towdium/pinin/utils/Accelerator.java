@@ -1,110 +1,275 @@
 package me.towdium.pinin.utils;
 
-import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import me.towdium.pinin.PinIn;
-import me.towdium.pinin.elements.Char;
+import me.towdium.pinin.elements.Automaton;
+import me.towdium.pinin.elements.Phoneme;
 import me.towdium.pinin.elements.Pinyin;
 
-import java.util.List;
+import java.util.Arrays;
 
 public class Accelerator {
+    static final int CHARS_BITS = 12;
+    static final int CHARS = 1 << CHARS_BITS;
+
     final PinIn context;
-    List<IndexSet.Storage> cache;
-    char[] searchChars;
+    final PinIn.Ticket ticket;
+    // lattice of the query, match results of all pinyins covered by automaton
+    // at offset * width + pinyin id, and their union at each offset,
+    // built at once on first use, valid if built in current generation,
+    // rows before kept are carried over from a shorter query
+    Automaton automaton;
+    int[] cache = new int[0];
+    int[] spans = new int[0];
+    int segmented;
+    int kept;
+    int width;
+    int rows;
+    int generation = 1;
+    // pairs of stamp and match result of single phonemes, at (offset * phonemes + phoneme id) * 2
+    int[] singles = new int[0];
+    int phonemes;
+    final Phoneme.Lookup lookup = this::get;
+    // direct mapped cache of whole chars, triples of stamp, key and result
+    int[] chars = new int[CHARS * 3];
+    // live offsets of scan, as bits
+    long[] live = new long[1];
+    long[] next = new long[1];
+    char[] searchChars = new char[16];
     String searchStr;
+    int length;  // of query, which is the first chars of search string
     Provider provider;
     Str str = new Str();
+    Arr arr = new Arr();
     boolean partial;
 
     public Accelerator(PinIn context) {
         this.context = context;
+        ticket = context.ticket(this::reset);
     }
 
     public void search(String s) {
-        if (!s.equals(searchStr)) {
+        search(s, s.length());
+    }
+
+    /**
+     * Searches the first {@code length} chars of given string, so
+     * prefixes of a query can be searched without copying them.
+     */
+    public void search(String s, int length) {
+        ticket.renew();
+        if (searchStr == null || length != this.length || !s.regionMatches(0, searchStr, 0, length)) {
+            // rows which can't reach the end of previous query stay the same
+            // when it is extended, so typing only segments the new tail
+            Automaton previous = segmented == generation ? automaton : null;
+            int keep = searchStr != null && length > this.length && s.regionMatches(0, searchStr, 0, this.length) ?
+                    Math.max(0, this.length - automaton.depth()) : 0;
             // here we store both search token as string and char array
             // it seems stupid, but saves over 10% of accelerator overhead
             searchStr = s;
-            searchChars = s.toCharArray();
+            this.length = length;
+            if (searchChars.length < length) searchChars = new char[length * 2];
+            s.getChars(0, length, searchChars, 0);
             reset();
+            if (rows <= length) resize(Math.max(rows * 2, length + 1), width, phonemes);
+            else if (automaton == previous) kept = keep;
         }
     }
 
-    public IndexSet get(char ch, int offset) {
-        Char c = context.getChar(ch);
-        IndexSet ret = (searchChars[offset] == c.get() ? IndexSet.ONE : IndexSet.NONE).copy();
-        for (Pinyin p : c.pinyins()) ret.merge(get(p, offset));
+    public int get(char ch, int offset) {
+        int key = offset << 16 | ch;
+        int i = ((ch << 5 ^ offset) * 0x9E3779B9 >>> 32 - CHARS_BITS) * 3;
+        if (chars[i] == generation && chars[i + 1] == key) return chars[i + 2];
+        int ret = searchChars[offset] == ch ? IndexSet.ONE : IndexSet.NONE;
+        // chars only hold pinyins of dictionary, which are all covered by lattice
+        if (offset >= length || spans(offset) != IndexSet.NONE) {
+            for (Pinyin p : context.getChar(ch).pinyins()) ret = IndexSet.merge(ret, get(p, offset));
+        }
+        chars[i] = generation;
+        chars[i + 1] = key;
+        chars[i + 2] = ret;
         return ret;
     }
 
-    public IndexSet get(Pinyin p, int offset) {
-        for (int i = cache.size(); i <= offset; i++)
-            cache.add(new IndexSet.Storage());
-        IndexSet.Storage data = cache.get(offset);
-        IndexSet ret = data.get(p.id);
-        if (ret == null) {
-            ret = p.match(searchStr, offset, partial);
-            data.set(ret, p.id);
-        }
+    public int get(Pinyin p, int offset) {
+        // pinyins created after the automaton are matched one by one
+        if (p.id >= width || offset >= length)
+            return p.match(searchStr, offset, length, partial, context.state(), lookup);
+        if (segmented != generation) segment();
+        return cache[offset * width + p.id];
+    }
+
+    /**
+     * Match lengths of given phoneme at given offset of query, as the
+     * first phoneme of a pinyin, so it is {@link IndexSet#NONE} only if
+     * no pinyin starting with it can match there. Results of phonemes
+     * are cached along with the ones used to match pinyins.
+     */
+    public int get(Phoneme p, int offset) {
+        // empty phoneme passes on to the next one
+        if (p.isEmpty()) return IndexSet.ZERO;
+        int ret = get(p, searchStr, offset, length, partial);
+        if (context.state().keyboard.sequence && p.matchSequence(searchChars[offset])) ret |= IndexSet.ONE;
         return ret;
     }
 
+    /**
+     * Union of match lengths of all pinyins at given offset of query,
+     * {@link IndexSet#NONE} if no pinyin matches there, so only the
+     * char itself can.
+     */
+    public int spans(int offset) {
+        if (segmented != generation) segment();
+        return spans[offset];
+    }
+
+    // segments the whole query, one automaton walk for each offset
+    private void segment() {
+        Arrays.fill(cache, kept * width, length * width, 0);
+        for (int i = kept; i < length; i++)
+            spans[i] = automaton.match(searchStr, i, length, partial, cache, i * width);
+        segmented = generation;
+        kept = length;
+    }
+
+    private int get(Phoneme p, String source, int offset, int end, boolean partial) {
+        if (p.id >= phonemes) resize(rows, width, Math.max(p.id + 1, phonemes * 2));
+        int i = (offset * phonemes + p.id) << 1;
+        if (singles[i] == generation) return singles[i + 1];
+        int ret = Phoneme.DIRECT.match(p, source, offset, end, partial);
+        singles[i] = generation;
+        singles[i + 1] = ret;
+        return ret;
+    }
+
+    // cached results are dropped, they are cheap to recompute
+    private void resize(int rows, int width, int phonemes) {
+        this.rows = rows;
+        this.width = width;
+        this.phonemes = phonemes;
+        cache = new int[rows * width];
+        spans = new int[rows];
+        segmented = 0;
+        kept = 0;
+        singles = new int[rows * phonemes * 2];
+        Arrays.fill(chars, 0);
+        generation = 1;
+    }
+
     public void setProvider(Provider p) {
         provider = p;
     }
 
-    public void setProvider(String s) {
+    public void setProvider(CharSequence s) {
         str.s = s;
         provider = str;
     }
 
+    public void setProvider(char[] chars, int offset, int length) {
+        arr.chars = chars;
+        arr.offset = offset;
+        arr.length = length;
+        provider = arr;
+    }
+
     public void reset() {
-        cache = new ObjectArrayList<>();
+        kept = 0;
+        automaton = context.state().automaton();
+        if (automaton.size() != width) resize(rows, automaton.size(), phonemes);
+        else if (++generation == 0) {
+            segmented = 0;
+            Arrays.fill(singles, 0);
+            Arrays.fill(chars, 0);
+            generation = 1;
+        }
     }
 
     // offset - offset in search string
     // start - start point in raw text
     public boolean check(int offset, int start) {
-        if (offset == searchStr.length()) return partial || provider.end(start);
-        if (provider.end(start)) return false;
+        return scan(offset, start, false);
+    }
 
-        IndexSet s = get(provider.get(start), offset);
+    // advances the set of live offsets in search string over the text char by char,
+    // with shifts of match lengths, and starts a new match at each char if contains
+    private boolean scan(int offset, int start, boolean contains) {
+        if (length >= Long.SIZE) return wide(offset, start, contains);
+        long live = 1L << offset;
+        long goal = 1L << length;
+        for (int i = start; !provider.end(i); i++) {
+            if (contains) live |= 1L << offset;
+            if (partial && (live & goal) != 0) return true;
+            char ch = provider.get(i);
+            long next = 0;
+            for (long v = live & ~goal; v != 0; v &= v - 1) {
+                int o = Long.numberOfTrailingZeros(v);
+                next |= (get(ch, o) & 0xFFFFFFFFL) << o;
+            }
+            live = next;
+            if (live == 0 && !contains) return false;
+        }
+        return (live & goal) != 0;
+    }
 
-        if (provider.end(start + 1)) {
-            int i = searchStr.length() - offset;
-            return s.get(i);
-        } else return s.traverse(i -> check(offset + i, start + 1));
+    // same as scan, for search strings too long for a single word
+    private boolean wide(int offset, int start, boolean contains) {
+        int words = (length >> 6) + 1;  // 64 offsets each
+        if (live.length < words) {
+            live = new long[words];
+            next = new long[words];
+        }
+        Arrays.fill(live, 0, words, 0);
+        live[offset >> 6] = 1L << offset;
+        for (int i = start; !provider.end(i); i++) {
+            if (contains) live[offset >> 6] |= 1L << offset;
+            if (partial && (live[length >> 6] & 1L << length) != 0) return true;
+            char ch = provider.get(i);
+            boolean any = false;
+            Arrays.fill(next, 0, words, 0);
+            for (int w = 0; w < words; w++) {
+                for (long v = live[w]; v != 0; v &= v - 1) {
+                    int o = w << 6 | Long.numberOfTrailingZeros(v);
+                    if (o == length) continue;
+                    long s = get(ch, o) & 0xFFFFFFFFL;
+                    if (s == 0) continue;
+                    any = true;
+                    int shift = o & 63;
+                    next[w] |= s << shift;
+                    if (shift > 32 && w + 1 < words) next[w + 1] |= s >>> 64 - shift;
+                }
+            }
+            long[] swap = live;
+            live = next;
+            next = swap;
+            if (!any && !contains) return false;
+        }
+        return (live[length >> 6] & 1L << length) != 0;
     }
 
-    public boolean matches(int offset, int start) {
-        if (partial) {
-            partial = false;
+    public void partial(boolean partial) {
+        if (this.partial != partial) {
+            this.partial = partial;
             reset();
         }
+    }
+
+    public boolean matches(int offset, int start) {
+        partial(false);
         return check(offset, start);
     }
 
     public boolean begins(int offset, int start) {
-        if (!partial) {
-            partial = true;
-            reset();
-        }
+        partial(true);
         return check(offset, start);
     }
 
     public boolean contains(int offset, int start) {
-        if (!partial) {
-            partial = true;
-            reset();
-        }
-        for (int i = start; !provider.end(i); i++) {
-            if (check(offset, i)) return true;
-        }
-        return false;
+        partial(true);
+        // contains needs a match starting at some char, not at the end
+        return !provider.end(start) && scan(offset, start, true);
     }
 
     public String search() {
-        return searchStr;
+        return length == searchStr.length() ? searchStr : searchStr.substring(0, length);
     }
 
     public int common(int s1, int s2, int max) {
@@ -122,8 +287,24 @@ public class Accelerator {
         char get(int i);
     }
 
+    static class Arr implements Provider {
+        char[] chars;
+        int offset;
+        int length;
+
+        @Override
+        public boolean end(int i) {
+            return i >= length;
+        }
+
+        @Override
+        public char get(int i) {
+            return chars[offset + i];
+        }
+    }
+
     static class Str implements Provider {
-        String s;
+        CharSequence s;
 
         @Override
         public boolean end(int i) {
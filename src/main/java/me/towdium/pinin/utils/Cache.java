@@ -1,6 +1,7 @@
 package me.towdium.pinin.utils;
 
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 
@@ -9,7 +10,7 @@ import java.util.function.Function;
  * Date: 04/03/19
  */
 public class Cache<K, V> {
-    HashMap<K, V> data = new HashMap<>();
+    Map<K, V> data = new ConcurrentHashMap<>();
     Function<K, V> generator;
 
     public Cache(Function<K, V> generator) {
@@ -18,11 +19,7 @@ public class Cache<K, V> {
 
     public V get(K key) {
         V ret = data.get(key);
-        if (ret == null) {
-            ret = generator.apply(key);
-            if (ret != null) data.put(key, ret);
-        }
-        return ret;
+        return ret == null ? data.computeIfAbsent(key, generator) : ret;
     }
 
     public void foreach(BiConsumer<K, V> c) {
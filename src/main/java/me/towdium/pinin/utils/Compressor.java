@@ -8,6 +8,7 @@ import it.unimi.dsi.fastutil.ints.IntList;
 public class Compressor implements Accelerator.Provider {
     CharList chars = new CharArrayList();
     IntList strs = new IntArrayList();
+    int dead = 0;  // characters taken by removed strings
 
     public IntList offsets() {
         return strs;
@@ -21,6 +22,55 @@ public class Compressor implements Accelerator.Provider {
         return strs.getInt(strs.size() - 1);
     }
 
+    /**
+     * Marks string at given index as removed, its offset becomes -1.
+     * Space is reclaimed in {@link #compact()}.
+     */
+    public void remove(int index) {
+        int start = strs.getInt(index);
+        if (start < 0) return;
+        dead += length(start) + 1;
+        strs.set(index, -1);
+    }
+
+    public int size() {
+        return chars.size();
+    }
+
+    public boolean removed(int index) {
+        return strs.getInt(index) < 0;
+    }
+
+    public int length(int offset) {
+        int i = offset;
+        while (chars.getChar(i) != '\0') i++;
+        return i - offset;
+    }
+
+    /**
+     * @return whether removed strings take more space than remaining ones
+     */
+    public boolean sparse() {
+        return dead > chars.size() - dead;
+    }
+
+    /**
+     * Drops removed strings, offsets of remaining strings are changed,
+     * while their indices are kept.
+     */
+    public void compact() {
+        CharList replace = new CharArrayList(chars.size() - dead);
+        for (int i = 0; i < strs.size(); i++) {
+            int start = strs.getInt(i);
+            if (start < 0) continue;
+            strs.set(i, replace.size());
+            int end = start + length(start);
+            for (int j = start; j <= end; j++) replace.add(chars.getChar(j));
+        }
+        chars = replace;
+        dead = 0;
+    }
+
     @Override
     public boolean end(int i) {
         return chars.getChar(i) == '\0';
@@ -1,14 +1,16 @@
 package me.towdium.pinin;
 
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
-import it.unimi.dsi.fastutil.ints.IntSet;
+import me.towdium.pinin.elements.Automaton;
 import me.towdium.pinin.elements.Char;
 import me.towdium.pinin.elements.Pinyin;
 import me.towdium.pinin.searchers.CachedSearcher;
+import me.towdium.pinin.searchers.ConcurrentTreeSearcher;
+import me.towdium.pinin.searchers.MappedSearcher;
 import me.towdium.pinin.searchers.Searcher;
 import me.towdium.pinin.searchers.Searcher.Logic;
 import me.towdium.pinin.searchers.SimpleSearcher;
 import me.towdium.pinin.searchers.TreeSearcher;
+import me.towdium.pinin.utils.Accelerator;
 import me.towdium.pinin.utils.PinyinFormat;
 import org.junit.jupiter.api.Test;
 
@@ -16,129 +18,30 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.CharBuffer;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
-import java.util.function.Consumer;
-import java.util.function.Function;
+import java.util.function.Predicate;
 
 import static me.towdium.pinin.Keyboard.*;
 import static me.towdium.pinin.searchers.Searcher.Logic.CONTAIN;
 import static me.towdium.pinin.searchers.Searcher.Logic.EQUAL;
 
 public class PinInTest {
-    @Test
-    @SuppressWarnings({"unused", "MismatchedQueryAndUpdateOfCollection"})
-    public void performance() throws IOException {
-        List<String> search = new ArrayList<>();
-        search.add("boli");
-        search.add("yangmao");
-        search.add("hongse");
-        List<Function<Logic, Searcher<Integer>>> funcs = new ArrayList<>();
-        funcs.add(l -> new TreeSearcher<>(l, new PinIn()));
-        funcs.add(l -> new CachedSearcher<>(l, new PinIn()));
-        funcs.add(l -> new SimpleSearcher<>(l, new PinIn()));
-        String[] sources = new String[]{"small", "large"};
-
-        for (Logic j : Logic.values()) {
-            for (String k : sources) {
-                List<String> data = loadTestData(k);
-                boolean reduced = data.size() > 100000;
-                System.out.print("Logic: " + j.toString().toLowerCase() + ", source: " + k);
-
-                float contains = time(reduced ? 10 : 100, search, s -> {
-                    IntSet result = new IntOpenHashSet();
-                    for (int i = 0; i < data.size(); i++) {
-                        String in = data.get(i);
-                        if (j.raw(in, s)) result.add(i);
-                    }
-                });
-                System.out.print(", contains search: " + String.format("%.2f", contains));
-
-                PinIn p = new PinIn();
-                float traverse = time(reduced ? 10 : 100, search, s -> {
-                    IntSet result = new IntOpenHashSet();
-                    for (int i = 0; i < data.size(); i++) {
-                        String in = data.get(i);
-                        if (j.test(p, in, s)) result.add(i);
-                    }
-                });
-                System.out.println(", loop search: " + String.format("%.1f", traverse));
-
-                for (Function<Logic, Searcher<Integer>> i : funcs) {
-                    performance(j, data, search, i);
-                }
-            }
-        }
-    }
-
-    private float time(int repeat, Runnable exec) {
-        long time = System.currentTimeMillis();
-        for (int i = 0; i < repeat; i++) {
-            exec.run();
-        }
-        return (System.currentTimeMillis() - time) / (float) repeat;
-    }
-
-    private <T> float time(int repeat, Collection<T> objs, Consumer<T> consumer) {
-        long time = System.currentTimeMillis();
-        for (int j = 0; j < repeat; j++) {
-            for (T i: objs) {
-                consumer.accept(i);
-            }
-        }
-        return (System.currentTimeMillis() - time) / (float) repeat / objs.size();
-    }
-
-    private List<String> loadTestData(String source) throws IOException {
-        String line;
-        List<String> data = new ArrayList<>();
-        InputStream is = PinInTest.class.getResourceAsStream(source + ".txt");
-        assert is != null;
-        InputStreamReader isr = new InputStreamReader(is, StandardCharsets.UTF_8);
-        BufferedReader br = new BufferedReader(isr);
-        while ((line = br.readLine()) != null) {
-            if (line.isEmpty()) continue;
-            data.add(line);
-        }
-        return data;
-    }
-
-    private void performance(Logic logic, List<String> texts, List<String> tokens,
-                             Function<Logic, Searcher<Integer>> func) {
-        long start = System.currentTimeMillis();
-        final Searcher<Integer> searcher = func.apply(logic);
-        for (int j = 0; j < texts.size(); j++) searcher.put(texts.get(j), j);
-        boolean reduced = texts.size() > 100000;
-        System.out.print("  " + searcher.getClass().getSimpleName());
-
-        int loop = reduced ? 10 : 100;
-        if (searcher instanceof TreeSearcher) loop /= 5;
-        float construct = time(loop, () -> {
-            Searcher<Integer> temp = func.apply(logic);
-            for (int j = 0; j < texts.size(); j++) temp.put(texts.get(j), j);
-        });
-        System.out.print(": construction: " + String.format("%.1f", construct));
-
-        if (searcher instanceof CachedSearcher) {
-            float warm = time(reduced ? 10 : 100, tokens, s -> {
-                List<Integer> is = searcher.search(s);
-                ((CachedSearcher<Integer>) searcher).reset();
-            });
-            System.out.print(", warmup: " + String.format("%.1f", warm));
-        }
-
-        loop = reduced ? 1000 : 10000;
-        if (searcher instanceof SimpleSearcher) loop /= 100;
-        float search = time(loop, tokens, (s) -> {
-            List<Integer> is = searcher.search(s);
-        });
-        System.out.print(", accelerated: " + String.format("%.3f", search));
-        System.out.println(", total: " + (System.currentTimeMillis() - start));
-    }
-
     @Test
     public void quanpin() {
         PinIn p = new PinIn();
@@ -166,9 +69,12 @@ public class PinInTest {
         PinIn p = new PinIn().config().keyboard(DAQIAN).commit();
         assert p.contains("测试文本", "hk4g4jp61p3");
         assert p.contains("测试文本", "hkgjp1");
-        assert p.contains("錫", "vu6");
+        // pinyin-data only has xī for 錫 and zhì for 質, not xí and zhí
+        assert p.contains("錫", "vu ");
+        assert !p.contains("錫", "vu6");
         assert p.contains("鑽石", "yj0");
-        assert p.contains("物質", "j456");
+        assert p.contains("物質", "j454");
+        assert !p.contains("物質", "j456");
         assert p.contains("腳手架", "rul3g.3ru84");
         assert p.contains("鵝", "k6");
         assert p.contains("葉", "u,4");
@@ -292,6 +198,8 @@ public class PinInTest {
             assert is.size() == 2 && is.contains(10) && is.contains(11);
             is = s.search("hhu");
             assert is.isEmpty();
+            is = s.search("合j炉");
+            assert is.size() == 1 && is.contains(2);
         }
     }
 
@@ -328,4 +236,598 @@ public class PinInTest {
         assert searcher.search("lu2d").contains(0);
         assert p.contains("\uE900", "lu2");
     }
+
+    @Test
+    public void shared() {
+        PinIn a = new PinIn();
+        PinIn b = new PinIn(a.dictionary());
+        assert new PinIn().dictionary() == a.dictionary();
+        b.config().fSh2S(true).keyboard(DAQIAN).commit();
+        assert a.contains("测试文本", "ceshi");
+        assert !a.contains("测试文本", "cesi");
+        assert b.contains("测试文本", "hk4g4");
+        assert !b.contains("测试文本", "ceshi");
+        assert a.getChar('测') != b.getChar('测');
+        // pinyins are shared, phonemes belong to each configuration
+        Pinyin py = a.getChar('测').pinyins()[0];
+        assert py == b.getChar('测').pinyins()[0] && py == b.getPinyin("ce4");
+        assert a.state().phonemes(py) != b.state().phonemes(py);
+        assert a.getPinyin("xyz1") == b.getPinyin("xyz1");
+    }
+
+    @Test
+    public void concurrent() throws InterruptedException {
+        ConcurrentTreeSearcher<Integer> searcher = new ConcurrentTreeSearcher<>(CONTAIN, new PinIn());
+        TreeSearcher<Integer> tree = new TreeSearcher<>(CONTAIN, new PinIn());
+        String[] names = new String[]{"测试文本", "合金炉", "洗矿场", "流体"};
+        int total = 2000;
+        AtomicInteger published = new AtomicInteger();
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    while (published.get() < total) {
+                        int before = published.get();
+                        List<Integer> is = searcher.search("ceshi");
+                        // every 4th entry matches, in insertion order
+                        if (is.size() < (before + 3) / 4) failed.set(true);
+                        for (int j = 0; j < is.size(); j++)
+                            if (is.get(j) != j * 4) failed.set(true);
+                    }
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    failed.set(true);
+                }
+            });
+            t.start();
+            readers.add(t);
+        }
+        for (int i = 0; i < total; i++) {
+            searcher.put(names[i % names.length], i);
+            tree.put(names[i % names.length], i);
+            published.set(i + 1);
+        }
+        for (Thread t : readers) t.join();
+        assert !failed.get();
+        for (String s : new String[]{"ceshi", "hejin", "kuang", "liu", "l"})
+            assert searcher.search(s).equals(tree.search(s));
+        // streaming skips removed entries and stops when refused
+        for (int i = 0; i < total; i += 3) searcher.remove(i);
+        List<Integer> streamed = new ArrayList<>();
+        searcher.search("l", streamed::add);
+        streamed.sort(null);
+        assert streamed.equals(searcher.search("l"));
+        streamed.clear();
+        searcher.search("l", i -> streamed.add(i) && streamed.size() < 3);
+        assert streamed.size() == 3;
+    }
+
+    @Test
+    public void threads() throws InterruptedException {
+        PinIn p = new PinIn();
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Thread> matchers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        if (!p.contains("测试文本", "ceshiwenben")) failed.set(true);
+                        if (!p.contains("hong2", "hong2")) failed.set(true);
+                        if (!p.begins("abc测试", "abcce4")) failed.set(true);
+                        if (p.matches("xyz", "xzy")) failed.set(true);
+                    }
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    failed.set(true);
+                }
+            });
+            t.start();
+            matchers.add(t);
+        }
+        for (int i = 0; i < 200; i++)
+            p.config().fAng2An(i % 2 == 0).accelerate(i % 3 == 0).commit();
+        done.set(true);
+        for (Thread t : matchers) t.join();
+        assert !failed.get();
+    }
+
+    @Test
+    public void session() throws IOException {
+        List<String> data = small();
+        String[] typed = new String[]{"h", "ho", "hon", "hong", "hongs", "hongse", "hong",
+                "hongb", "ho", "", "bo", "boli", "x", "xikuang", "iron", "ir", "yang2m", "s"};
+        PinIn p = new PinIn();
+        for (Logic l : Logic.values()) {
+            List<Searcher<Integer>> ss = new ArrayList<>();
+            ss.add(new TreeSearcher<>(l, p));
+            ss.add(new SimpleSearcher<>(l, p));
+            ss.add(new CachedSearcher<>(l, p));
+            for (Searcher<Integer> s : ss) {
+                for (int i = 0; i < data.size(); i++) s.put(data.get(i), i);
+                Searcher.Session<Integer> session = s.session();
+                for (String t : typed) assert session.search(t).equals(s.search(t));
+                s.put("红色", -1);
+                assert session.search("hongse").contains(-1);
+                p.config().fSh2S(true).commit();
+                assert session.search("hongs").equals(s.search("hongs"));
+                p.config().fSh2S(false).commit();
+            }
+        }
+    }
+
+    @Test
+    public void slices() {
+        // dense node overflowing without common prefix
+        String[] names = new String[]{"Yellorium Block", "深天蓝色方块 #391", "线缆伪装板 - 镍块",
+                "雕刻碎屑 - 变质沼泽石头", "雕刻碎屑 - 黑色 光滑塑料方块"};
+        PinIn p = new PinIn();
+        for (Logic l : Logic.values()) {
+            TreeSearcher<Integer> tree = new TreeSearcher<>(l, p);
+            for (int i = 0; i < names.length; i++) tree.put(names[i], i);
+            Searcher.Session<Integer> session = tree.session();
+            for (String q : new String[]{"B", "Bl", "Y", "d", "diao", "s", "sh", "-", "- ", "k"})
+                assert session.search(q).equals(tree.search(q)) : q;
+        }
+    }
+
+    @Test
+    public void spans() {
+        // matches longer than 7 chars lead on to the next char
+        for (boolean a : new boolean[]{true, false}) {
+            PinIn p = new PinIn().config().accelerate(a).commit();
+            assert p.contains("窗户", "chuang1hu");
+            assert p.matches("窗户", "chuang1hu4");
+            assert p.begins("双人床", "shuang1ren");
+            assert !p.contains("窗户", "chuang2hu");
+        }
+    }
+
+    @Test
+    public void sequence() {
+        // initials matched by their first letter pass phoneme index of large nodes
+        String[] names = new String[]{"充能红石水晶块", "样板编码台", "晶体催生仓", "高级压印器",
+                "Network Visualisation Tool", "Infinity Booster Card"};
+        PinIn p = new PinIn();
+        for (Logic l : Logic.values()) {
+            TreeSearcher<Integer> tree = new TreeSearcher<>(l, p);
+            SimpleSearcher<Integer> simple = new SimpleSearcher<>(l, p);
+            for (int i = 0; i < names.length; i++) {
+                tree.put(names[i], i);
+                simple.put(names[i], i);
+            }
+            for (String q : new String[]{"cx", "c", "cnhs", "nhs", "ybbm", "tcs"})
+                assert tree.search(q).equals(simple.search(q));
+        }
+    }
+
+    @Test
+    public void extend() {
+        for (Keyboard k : new Keyboard[]{QUANPIN, DAQIAN, XIAOHE}) {
+            PinIn p = new PinIn().config().keyboard(k).fZh2Z(true).commit();
+            Accelerator typed = new Accelerator(p);
+            Accelerator prefix = new Accelerator(p);
+            String full = "zhongguorenhongse5j;q8gjangshzhong";
+            for (boolean partial : new boolean[]{true, false}) {
+                for (int i = 1; i <= full.length(); i++) {
+                    // rows kept from previous prefix match a fresh lattice
+                    String q = full.substring(0, i);
+                    typed.search(q);
+                    typed.partial(partial);
+                    // prefixes searched in place match copied ones
+                    prefix.search(full, i);
+                    prefix.partial(partial);
+                    assert prefix.search().equals(q);
+                    Accelerator fresh = new Accelerator(p);
+                    fresh.search(q);
+                    fresh.partial(partial);
+                    for (int o = 0; o < i; o++) {
+                        assert typed.spans(o) == fresh.spans(o);
+                        assert prefix.spans(o) == fresh.spans(o);
+                        for (char c : "中国人红色长江".toCharArray()) {
+                            assert typed.get(c, o) == fresh.get(c, o);
+                            assert prefix.get(c, o) == fresh.get(c, o);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void remove() throws IOException {
+        List<String> data = small();
+        String[] queries = new String[]{"h", "hong", "hongse", "bo", "boli", "x", "iron", "yang2m", ""};
+        PinIn p = new PinIn();
+        for (Logic l : Logic.values()) {
+            List<Searcher<Integer>> ss = new ArrayList<>();
+            ss.add(new TreeSearcher<>(l, p));
+            ss.add(new SimpleSearcher<>(l, p));
+            ss.add(new CachedSearcher<>(l, p));
+            ss.add(new ConcurrentTreeSearcher<>(l, p));
+            for (Searcher<Integer> s : ss) {
+                for (int i = 0; i < data.size(); i++) s.put(data.get(i), i);
+                for (String q : queries) s.search(q);
+                for (int i = 0; i < data.size(); i += 3) s.remove(i);
+                for (int i = 1; i < data.size(); i += 3) s.update(data.get(i - 1), i);
+                SimpleSearcher<Integer> expected = new SimpleSearcher<>(l, p);
+                for (int i = 1; i < data.size(); i += 3) expected.put(data.get(i - 1), i);
+                for (int i = 2; i < data.size(); i += 3) expected.put(data.get(i), i);
+                for (String q : queries) assert sorted(s.search(q)).equals(sorted(expected.search(q)));
+
+                // removes most entries to drop their strings
+                for (int i = 1; i < data.size(); i += 3) s.remove(i);
+                expected = new SimpleSearcher<>(l, p);
+                for (int i = 2; i < data.size(); i += 3) expected.put(data.get(i), i);
+                for (String q : queries) assert sorted(s.search(q)).equals(sorted(expected.search(q)));
+                s.remove(2);
+                s.put("红色", 2);
+                assert s.search("hongse").contains(2);
+            }
+        }
+    }
+
+    @Test
+    public void compact() throws IOException {
+        List<String> data = small().subList(0, 4096);
+        String[] queries = new String[]{"h", "hong", "bo", "x", "iron", ""};
+        ConcurrentTreeSearcher<Integer> s = new ConcurrentTreeSearcher<>(CONTAIN, new PinIn());
+        for (int i = 0; i < data.size(); i++) s.put(data.get(i), i);
+        // entries keep being removed while segments are rebuilt
+        for (int i = 0; i < data.size(); i++) if (i % 4 != 3) s.remove(i);
+        for (int i = 3; i < data.size(); i += 8) s.remove(i);
+        SimpleSearcher<Integer> expected = new SimpleSearcher<>(CONTAIN, new PinIn());
+        for (int i = 7; i < data.size(); i += 8) expected.put(data.get(i), i);
+        long end = System.currentTimeMillis() + 500;
+        do {
+            for (String q : queries) assert sorted(s.search(q)).equals(sorted(expected.search(q)));
+        } while (System.currentTimeMillis() < end);
+    }
+
+    @Test
+    public void bulk() throws IOException {
+        List<String> data = small();
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < data.size(); i++) ids.add(i);
+        String[] queries = new String[]{"h", "hong", "hongse", "bo", "boli", "x", "iron", "yang2m", "", "ing"};
+        PinIn p = new PinIn();
+        for (Logic l : Logic.values()) {
+            TreeSearcher<Integer> bulk = new TreeSearcher<>(l, p);
+            TreeSearcher<Integer> single = new TreeSearcher<>(l, p);
+            bulk.putAll(data.subList(0, 1000), ids.subList(0, 1000));
+            bulk.putAll(data.subList(1000, data.size()), ids.subList(1000, data.size()));
+            for (int i = 0; i < data.size(); i++) single.put(data.get(i), i);
+            for (String q : queries) assert bulk.search(q).equals(single.search(q));
+            bulk.put("红色", -1);
+            single.put("红色", -1);
+            assert bulk.search("hongse").contains(-1);
+            p.config().fSh2S(true).commit();
+            assert bulk.search("hongs").equals(single.search("hongs"));
+            p.config().fSh2S(false).commit();
+        }
+    }
+
+    @Test
+    public void mapped() throws IOException {
+        List<String> data = small();
+        String[] queries = new String[]{"h", "hong", "hongse", "bo", "boli", "x", "iron", "yang2m", "", "ing"};
+        PinIn p = new PinIn();
+        Path file = Files.createTempFile("pinin", ".bin");
+        try {
+            for (Logic l : Logic.values()) {
+                TreeSearcher<Integer> tree = new TreeSearcher<>(l, p);
+                for (int i = 0; i < data.size(); i++) tree.put(data.get(i), i);
+                tree.remove(0);
+                MappedSearcher.save(tree, file);
+                MappedSearcher mapped = MappedSearcher.open(file, p);
+                assert mapped.logic() == l;
+                for (String q : queries) {
+                    assert mapped.search(q).equals(tree.search(q));
+                    List<Integer> streamed = new ArrayList<>();
+                    mapped.search(q, streamed::add);
+                    streamed.sort(null);
+                    assert streamed.equals(mapped.search(q));
+                    List<Integer> async = mapped.searchAsync(q, Runnable::run).join();
+                    async.sort(null);
+                    assert async.equals(streamed);
+                    AtomicInteger checks = new AtomicInteger();
+                    List<Integer> some = new ArrayList<>();
+                    mapped.search(q, some::add, () -> checks.incrementAndGet() > 8);
+                    assert some.size() <= 8 && (streamed.size() <= 8 || some.size() < streamed.size());
+                }
+                // phoneme indices are not used with different config
+                p.config().fSh2S(true).keyboard(DAQIAN).commit();
+                for (String q : new String[]{"cu", "vu06", "5j4"}) assert mapped.search(q).equals(tree.search(q));
+                p.config().fSh2S(false).keyboard(QUANPIN).commit();
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void memo() {
+        PinIn p = new PinIn().config().fZh2Z(true).fSh2S(true).fAng2An(true).commit();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) sb.append("长沙市长");
+        String s = sb + "合金炉";
+        assert p.contains(s, "changshashizhanghejinlu");
+        assert p.contains(s, "csszhjl");
+        assert !p.contains(s, "csszhjlx");
+        assert p.begins(s, "zangsasizang");
+        assert !p.begins(s, "sasi");
+        assert !p.matches(s, "hejinlu");
+        assert p.matches("长沙市长", "zhangsashizang");
+    }
+
+    @Test
+    public void scan() {
+        PinIn slow = new PinIn();
+        PinIn fast = new PinIn().config().accelerate(true).commit();
+        StringBuilder text = new StringBuilder();
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append("测试文本");
+            query.append("ceshiwenben");
+        }
+        // queries longer than a word of live offsets
+        String[] ss = new String[]{text.toString(), text + "合金炉", "合金炉" + text};
+        String[] qs = new String[]{query.toString(), query + "hjl", "hjl" + query, query + "x", "cswb"};
+        for (String s : ss) {
+            for (String q : qs) {
+                assert slow.begins(s, q) == fast.begins(s, q);
+                assert slow.contains(s, q) == fast.contains(s, q);
+                assert slow.matches(s, q) == fast.matches(s, q);
+            }
+        }
+        assert fast.contains(ss[2], qs[0]) && !fast.begins(ss[2], qs[0]) && fast.matches(ss[1], qs[1]);
+    }
+
+    @Test
+    public void filter() throws IOException {
+        List<String> data = small();
+        PinIn p = new PinIn();
+        for (Logic l : Logic.values()) {
+            for (String q : new String[]{"hong", "boli", "tie", "", "x"}) {
+                List<Integer> expected = new ArrayList<>();
+                for (int i = 0; i < data.size(); i++) if (l.test(p, data.get(i), q)) expected.add(i);
+                assert p.filter(data, q, l).equals(expected);
+                assert p.filter(data, q, l, ForkJoinPool.commonPool()).equals(expected);
+            }
+        }
+    }
+
+    @Test
+    public void stream() throws IOException {
+        List<String> data = small();
+        PinIn p = new PinIn();
+        for (Logic l : Logic.values()) {
+            List<Searcher<Integer>> ss = new ArrayList<>();
+            ss.add(new TreeSearcher<>(l, p));
+            ss.add(new SimpleSearcher<>(l, p));
+            ss.add(new CachedSearcher<>(l, p));
+            ss.add(new ConcurrentTreeSearcher<>(l, p));
+            for (Searcher<Integer> s : ss) {
+                for (int i = 0; i < data.size(); i++) s.put(data.get(i), i);
+                for (String q : new String[]{"hong", "boli", "tie", "", "x", "gangzhi"}) {
+                    List<Integer> all = new ArrayList<>();
+                    s.search(q, all::add);
+                    List<Integer> expected = s.search(q);
+                    all.sort(null);
+                    expected.sort(null);
+                    assert all.equals(expected);
+                    List<Integer> first = new ArrayList<>();
+                    s.search(q, i -> first.add(i) && first.size() < 3);
+                    assert first.size() == Math.min(3, expected.size());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void hits() {
+        PinIn p = new PinIn();
+        TreeSearcher<Integer> tree = new TreeSearcher<>(Logic.CONTAIN, p);
+        SimpleSearcher<Integer> simple = new SimpleSearcher<>(Logic.CONTAIN, p);
+        for (int i = 0; i < 1000; i++) {
+            // repeated syllables reach the same entry through many suffixes
+            String name = i % 7 == 0 ? "红红红色" + i : i % 3 == 0 ? "hong" + i : "测试" + i;
+            tree.put(name, i);
+            simple.put(name, i);
+        }
+        for (String q : new String[]{"hong", "h", "hongse", "ceshi", "99", "x"}) {
+            for (int i = 0; i < 2; i++) assert tree.search(q).equals(simple.search(q));
+        }
+    }
+
+    @Test
+    public void limit() throws IOException {
+        List<String> data = small();
+        PinIn p = new PinIn();
+        for (Logic l : Logic.values()) {
+            List<Searcher<Integer>> ss = new ArrayList<>();
+            ss.add(new TreeSearcher<>(l, p));
+            ss.add(new SimpleSearcher<>(l, p));
+            ss.add(new CachedSearcher<>(l, p));
+            ss.add(new ConcurrentTreeSearcher<>(l, p));
+            for (Searcher<Integer> s : ss) {
+                for (int i = 0; i < data.size(); i++) s.put(data.get(i), i);
+                for (String q : new String[]{"hong", "h", "tie", "", "x"}) {
+                    List<Integer> all = s.search(q);
+                    for (int n : new int[]{0, 1, 5, 20, Integer.MAX_VALUE}) {
+                        List<Integer> some = s.search(q, n);
+                        assert some.size() == Math.min(n, all.size());
+                        assert all.containsAll(some);
+                        List<Integer> sorted = new ArrayList<>(some);
+                        sorted.sort(null);
+                        assert sorted.equals(some) && some.equals(s.search(q, n));
+                        if (s instanceof SimpleSearcher) assert some.equals(all.subList(0, some.size()));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void topK() throws IOException {
+        List<String> data = small();
+        PinIn p = new PinIn();
+        float[] weights = new float[data.size()];
+        for (int i = 0; i < data.size(); i++) weights[i] = (i * 7919L) % 100003;
+        for (Logic l : Logic.values()) {
+            TreeSearcher<Integer> tree = new TreeSearcher<>(l, p);
+            for (String q : new String[]{"hong", ""}) assert tree.topK(q, 5).isEmpty();
+            for (int i = 0; i < data.size(); i++) tree.put(data.get(i), i, weights[i]);
+            tree.remove(3);
+            for (String q : new String[]{"hong", "h", "tie", "", "x", "boli"}) {
+                List<Integer> all = tree.search(q);
+                all.sort((a, b) -> Float.compare(weights[b], weights[a]));
+                for (int k : new int[]{0, 1, 5, 20, Integer.MAX_VALUE})
+                    assert tree.topK(q, k).equals(all.subList(0, Math.min(k, all.size())));
+            }
+        }
+    }
+
+    @Test
+    public void async() throws Exception {
+        List<String> data = small();
+        PinIn p = new PinIn();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (Logic l : Logic.values()) {
+                List<Searcher<Integer>> ss = new ArrayList<>();
+                ss.add(new TreeSearcher<>(l, p));
+                ss.add(new SimpleSearcher<>(l, p));
+                ss.add(new CachedSearcher<>(l, p));
+                ss.add(new ConcurrentTreeSearcher<>(l, p));
+                for (Searcher<Integer> s : ss) {
+                    for (int i = 0; i < data.size(); i++) s.put(data.get(i), i);
+                    for (String q : new String[]{"hong", "h", "tie", "x"}) {
+                        List<Integer> all = s.search(q);
+                        List<Integer> async = s.searchAsync(q, executor).get();
+                        async.sort(null);
+                        assert async.equals(all);
+                        AtomicInteger checks = new AtomicInteger();
+                        List<Integer> some = new ArrayList<>();
+                        s.search(q, some::add, () -> checks.incrementAndGet() > 8);
+                        assert some.size() <= 8 && (all.size() <= 8 || some.size() < all.size());
+                    }
+                    List<Runnable> tasks = new ArrayList<>();
+                    CompletableFuture<List<Integer>> f = s.searchAsync("h", tasks::add);
+                    f.cancel(true);
+                    tasks.forEach(Runnable::run);
+                    assert f.isCancelled();
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void sequences() throws NoSuchMethodException {
+        for (boolean accelerate : new boolean[]{false, true}) {
+            PinIn p = new PinIn().config().accelerate(accelerate).commit();
+            for (String s : new String[]{"测试文本", "合金炉", "洗矿场", "hong2"}) {
+                char[] chars = ("__" + s + "__").toCharArray();
+                CharBuffer heap = CharBuffer.wrap(chars, 2, s.length());
+                CharBuffer plain = CharBuffer.wrap("__" + s).subSequence(2, s.length() + 2);
+                StringBuilder sb = new StringBuilder(s);
+                for (String q : new String[]{"ceshi", "wenben", "hjl", "xkc", "hong", "hong2", "ce", ""}) {
+                    boolean b = p.begins(s, q), c = p.contains(s, q), m = p.matches(s, q);
+                    assert p.begins(sb, q) == b && p.contains(sb, q) == c && p.matches(sb, q) == m;
+                    assert p.begins(chars, 2, s.length(), q) == b && p.contains(chars, 2, s.length(), q) == c
+                            && p.matches(chars, 2, s.length(), q) == m;
+                    assert p.begins(heap, q) == b && p.contains(heap, q) == c && p.matches(heap, q) == m;
+                    assert p.begins(plain, q) == b && p.contains(plain, q) == c && p.matches(plain, q) == m;
+                }
+            }
+        }
+        // signatures of 1.6.1 are kept for callers compiled against it
+        for (String name : new String[]{"contains", "begins", "matches"}) {
+            PinIn.class.getMethod(name, String.class, String.class);
+            PinIn.Matcher.class.getMethod(name, String.class, String.class, PinIn.class);
+        }
+    }
+
+    @Test
+    public void alloc() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return;
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) bean;
+        if (!mx.isThreadAllocatedMemorySupported() || !mx.isThreadAllocatedMemoryEnabled()) return;
+        PinIn p = new PinIn();
+        PinIn accelerated = new PinIn().config().accelerate(true).commit();
+        String[] texts = new String[]{"测试文本", "合金炉", "洗矿场", "中文"};
+        String[] queries = new String[]{"ceshiwenben", "hjl", "xkc", "zhong", "wen"};
+        TreeSearcher<Integer> tree = new TreeSearcher<>(CONTAIN, p);
+        SimpleSearcher<Integer> simple = new SimpleSearcher<>(CONTAIN, p);
+        for (int i = 0; i < texts.length; i++) {
+            tree.put(texts[i], i);
+            simple.put(texts[i], i);
+        }
+        AtomicInteger count = new AtomicInteger();
+        Predicate<Integer> consumer = i -> count.incrementAndGet() > 0;
+        Runnable r = () -> {
+            for (String q : queries) {
+                for (String t : texts) {
+                    if (PinIn.Matcher.contains(t, q, p)) count.incrementAndGet();
+                    if (PinIn.Matcher.begins(t, q, p)) count.incrementAndGet();
+                    if (PinIn.Matcher.matches(t, q, p)) count.incrementAndGet();
+                    if (accelerated.contains(t, q)) count.incrementAndGet();
+                }
+                tree.search(q, consumer);
+                simple.search(q, consumer);
+            }
+        };
+        for (int i = 0; i < 1000; i++) r.run();
+        long id = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 1000; i++) r.run();
+        long after = mx.getThreadAllocatedBytes(id);
+        // measuring itself may allocate a few bytes
+        assert after - before < 1024 : after - before;
+    }
+
+    @Test
+    public void automaton() {
+        String[] queries = new String[]{"zhong", "zong1", "shangh", "lvse", "nve", "angz", "5j4", "vu06", "hjl", "ceshi"};
+        for (Keyboard k : new Keyboard[]{QUANPIN, DAQIAN, XIAOHE, ZIRANMA}) {
+            for (boolean fuzzy : new boolean[]{false, true}) {
+                PinIn p = new PinIn().config().keyboard(k).fZh2Z(fuzzy).fSh2S(fuzzy)
+                        .fAng2An(fuzzy).fIng2In(fuzzy).fU2V(fuzzy).commit();
+                Automaton m = p.state().automaton();
+                int[] ret = new int[m.size()];
+                for (String q : queries) {
+                    for (int start = 0; start < q.length(); start++) {
+                        for (boolean partial : new boolean[]{false, true}) {
+                            Arrays.fill(ret, 0);
+                            m.match(q, start, partial, ret, 0);
+                            for (String s : p.dictionary().pinyins) {
+                                Pinyin py = p.getPinyin(s);
+                                assert ret[py.id] == py.match(q, start, partial, p.state());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<Integer> sorted(List<Integer> l) {
+        List<Integer> ret = new ArrayList<>(l);
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private static List<String> small() throws IOException {
+        List<String> ret = new ArrayList<>();
+        InputStream is = PinInTest.class.getResourceAsStream("small.txt");
+        assert is != null;
+        BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+        String line;
+        while ((line = br.readLine()) != null) if (!line.isEmpty()) ret.add(line);
+        return ret;
+    }
 }